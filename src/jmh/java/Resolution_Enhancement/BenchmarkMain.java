@@ -0,0 +1,44 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+ PURPOSE: Runs UpsamplingBenchmark with the GC profiler, so the results show the
+ allocation rate per plugin, bit depth and size next to the voxels per second.
+ Arguments are the usual JMH options, e.g. -p size=64x64x64 to run the small volumes only.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(UpsamplingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
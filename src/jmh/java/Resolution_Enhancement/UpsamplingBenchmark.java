@@ -0,0 +1,128 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+ PURPOSE: JMH benchmark of the UpsamplingEngine with the kernel of every *_RE plugin, on
+ synthetic 8-bit, 16-bit and 32-bit stacks from 64^3 up to 512x512x400. Runs headless,
+ without creating windows, and reports new voxels per second ("voxels" counter) and,
+ through the GC profiler, the allocation rate. Run it from BenchmarkMain or with the
+ usual JMH options, e.g. -p plugin=Linear_RE -p bitDepth=16 -p size=256x256x256.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx24g", "--add-modules", "jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class UpsamplingBenchmark {
+
+    @Param({"Linear_RE", "Quadratic_RE", "Cubic_RE", "Bilinear_RE", "Bicubic_RE", "Gradient_RE"})
+    public String plugin;
+
+    @Param({"8", "16", "32"})
+    public int bitDepth;
+
+    // width x height x depth of the input stack
+    @Param({"64x64x64", "128x128x128", "256x256x256", "512x512x400"})
+    public String size;
+
+    private UpsamplingEngine engine;
+    private ImageStack stack;
+    private long newVoxels;
+
+    // New voxels computed, reported by JMH as a rate next to the operations per second
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Voxels {
+
+        public long voxels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            voxels = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        engine = new UpsamplingEngine(BatchUpsampler.kernel(plugin));
+        // Without a listener the engine logs its progress, which would be measured too
+        engine.setProgressListener((done, total) -> { });
+        String[] dimensions = size.split("x");
+        stack = syntheticStack(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]),
+                Integer.parseInt(dimensions[2]), bitDepth);
+        UpsamplingEngine.Plan plan = engine.plan(stack);
+        newVoxels = (long) plan.x.newSize * plan.y.newSize * plan.z.newSize;
+    }
+
+    @Benchmark
+    public ImageStack upsample(Voxels counter) {
+        ImageStack newStack = engine.upsample(stack);
+        counter.voxels += newVoxels;
+        return newStack;
+    }
+
+    // Random voxels over the full range of the bit depth (0..4095 for 32-bit, like CT
+    // numbers), with a fixed seed so every run sees the same data
+    static ImageStack syntheticStack(int width, int height, int depth, int bitDepth) {
+        Random random = new Random(42);
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            ImageProcessor ip;
+            int range;
+            if (bitDepth == 8) {
+                ip = new ByteProcessor(width, height);
+                range = 256;
+            } else if (bitDepth == 16) {
+                ip = new ShortProcessor(width, height);
+                range = 65536;
+            } else {
+                ip = new FloatProcessor(width, height);
+                range = 4096;
+            }
+            for (int i = 0; i < width * height; i++) {
+                ip.setf(i, random.nextInt(range));
+            }
+            stack.addSlice("" + (z + 1), ip);
+        }
+        return stack;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Where the new voxels of one axis fall in the input. For every new position
+ it holds the input voxel it lies in and on which side of that voxel's center it lies,
+ and for separable kernels the input voxels and weights it is interpolated from. All of
+ it is computed once per axis and reused for the whole volume. A mapping can also cover
+ only part of an axis, e.g. the bounds of an ROI, with the input voxels that part reads.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+final class AxisMapping {
+
+    // New positions closer than this to a voxel center count as on the center
+    private static final double CENTER_TOLERANCE = 1e-9;
+
+    final int size;
+    final int newSize;
+    final double scale;
+
+    // Where index 0 of this mapping lies in the whole axis, for input and new voxels
+    final int first;
+    final int newFirst;
+
+    // Input voxel each new voxel lies in
+    final int[] source;
+
+    // -1 or 1 when the new voxel lies before or after the center of its input voxel,
+    // 0 when it lies on the center (e.g. every voxel at scale 1)
+    final int[] side;
+
+    // For separable kernels: the taps input voxels new voxel i is interpolated from are
+    // tapSource[i * taps + j] with weight tapWeight[i * taps + j], edges already resolved
+    final int taps;
+    final int[] tapSource;
+    final float[] tapWeight;
+
+    AxisMapping(int size, double scale) {
+        this(size, scale, null, EdgePolicy.CLAMP);
+    }
+
+    AxisMapping(int size, double scale, SeparableKernel kernel, EdgePolicy edgePolicy) {
+        this.size = size;
+        newSize = Math.max(1, (int) Math.round(size * scale));
+        this.scale = (double) newSize / size;
+        first = 0;
+        newFirst = 0;
+        source = new int[newSize];
+        side = new int[newSize];
+
+        for (int i = 0; i < newSize; i++) {
+            // Centers of the new voxels, in input voxel coordinates
+            double position = (i + 0.5) / this.scale - 0.5;
+            int voxel = Math.max(0, Math.min(size - 1, (int) Math.floor(position + 0.5)));
+            double offset = position - voxel;
+            source[i] = voxel;
+            side[i] = (offset > CENTER_TOLERANCE) ? 1 : (offset < -CENTER_TOLERANCE) ? -1 : 0;
+        }
+
+        if (kernel == null) {
+            taps = 0;
+            tapSource = null;
+            tapWeight = null;
+            return;
+        }
+        taps = kernel.getTaps();
+        tapSource = new int[newSize * taps];
+        tapWeight = new float[newSize * taps];
+        for (int i = 0; i < newSize; i++) {
+            double position = (i + 0.5) / this.scale - 0.5;
+            int first = (int) Math.floor(position) - taps / 2 + 1;
+            double sum = 0;
+            for (int j = 0; j < taps; j++) {
+                double weight = kernel.weight(position - (first + j));
+                int voxel = edgePolicy.resolve(first + j, size);
+                sum += weight;
+                // A voxel outside the volume that reads as zero adds nothing but still
+                // counts in the sum of the weights
+                tapSource[i * taps + j] = Math.max(voxel, 0);
+                tapWeight[i * taps + j] = (voxel < 0) ? 0 : (float) weight;
+            }
+            // Weights add up to 1, so flat regions keep their value exactly
+            for (int j = 0; j < taps; j++) {
+                tapWeight[i * taps + j] = (float) (tapWeight[i * taps + j] / sum);
+            }
+        }
+    }
+
+    // Whether new voxel i reads any of the input voxels marked in changed: its source voxel
+    // or the neighbor on its side, resolved by edgePolicy, or for separable kernels any of
+    // its taps with a weight
+    boolean reads(int i, boolean[] changed, EdgePolicy edgePolicy) {
+        if (taps > 0) {
+            for (int j = i * taps; j < (i + 1) * taps; j++) {
+                if (tapWeight[j] != 0 && changed[tapSource[j]]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        int neighbor = edgePolicy.resolve(source[i] + side[i], size);
+        return changed[source[i]] || (neighbor >= 0 && changed[neighbor]);
+    }
+
+    // The new voxels of whole that lie in input voxels start to end - 1, reading only the
+    // input voxels they need: those plus a halo of one voxel, or of the kernel's reach for
+    // separable kernels, and at least reach voxels on both sides of each (e.g. 1 for the
+    // 3x3x3 gradient of GradientKernel). Indices are relative to that input range, which
+    // starts at first. Reads outside the whole axis stay outside this range too, so the
+    // edge policy resolves them the same way.
+    AxisMapping(AxisMapping whole, int start, int end, int reach) {
+        int newStart = 0;
+        while (whole.source[newStart] < start) {
+            newStart++;
+        }
+        int newEnd = newStart;
+        while (newEnd < whole.newSize && whole.source[newEnd] < end) {
+            newEnd++;
+        }
+
+        int low = whole.size - 1;
+        int high = 0;
+        for (int i = newStart; i < newEnd; i++) {
+            // A neighbor outside the axis keeps the voxel MIRROR reads in its place in range
+            int neighbor = whole.source[i] + whole.side[i];
+            if (neighbor < 0) {
+                neighbor = -neighbor;
+            } else if (neighbor >= whole.size) {
+                neighbor = 2 * (whole.size - 1) - neighbor;
+            }
+            neighbor = Math.max(0, Math.min(whole.size - 1, neighbor));
+            low = Math.min(low, Math.min(Math.max(0, whole.source[i] - reach), neighbor));
+            high = Math.max(high, Math.max(Math.min(whole.size - 1, whole.source[i] + reach), neighbor));
+            for (int j = i * whole.taps; j < (i + 1) * whole.taps; j++) {
+                low = Math.min(low, whole.tapSource[j]);
+                high = Math.max(high, whole.tapSource[j]);
+            }
+        }
+
+        size = high - low + 1;
+        newSize = newEnd - newStart;
+        scale = whole.scale;
+        first = low;
+        newFirst = newStart;
+        source = new int[newSize];
+        side = new int[newSize];
+        for (int i = 0; i < newSize; i++) {
+            source[i] = whole.source[newStart + i] - low;
+            side[i] = whole.side[newStart + i];
+        }
+
+        taps = whole.taps;
+        if (taps == 0) {
+            tapSource = null;
+            tapWeight = null;
+            return;
+        }
+        tapSource = new int[newSize * taps];
+        tapWeight = new float[newSize * taps];
+        for (int j = 0; j < newSize * taps; j++) {
+            tapSource[j] = whole.tapSource[newStart * taps + j] - low;
+            tapWeight[j] = whole.tapWeight[newStart * taps + j];
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+ PURPOSE: Headless command-line entry point that enhances a whole archive of series,
+ several at once on a bounded pool of workers, without opening any window:
+
+   java -cp ij.jar:Resolution_Enhancement.jar Resolution_Enhancement.BatchUpsampler
+        [-jobs N] [-scale S] [-slices A-B] [-metrics F] <input directory or list file> <kernel> <output directory>
+
+ Every TIFF file and every subdirectory (a DICOM series or image sequence) of the input
+ directory is one series; a list file names one TIFF file or series directory per line.
+ The kernel is one of Linear, Quadratic, Cubic, Bilinear, Bicubic or Gradient (the
+ plugin names, with or without "_RE"). Each series is streamed to <name>_RE.tif in the
+ output directory with its calibration, and its throughput is printed when it is done.
+ With -slices, only slices A to B of every series are upsampled.
+ With -metrics, the RunMetrics JSON of every series is also appended to file F, one per line.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.FolderOpener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BatchUpsampler {
+
+    private static final String USAGE = "Usage: BatchUpsampler [-jobs N] [-scale S] [-slices A-B] [-metrics F]"
+            + " <input directory or list file> <kernel> <output directory>";
+
+    private final String kernelName;
+    private final File outputDirectory;
+    private int jobs = Runtime.getRuntime().availableProcessors();
+    private double scale = 2;
+    private int firstSlice;
+    private int lastSlice;
+    private File metricsFile;
+
+    public BatchUpsampler(String kernelName, File outputDirectory) {
+        kernel(kernelName);
+        this.kernelName = kernelName;
+        this.outputDirectory = outputDirectory;
+    }
+
+    // Number of series processed at once, defaults to the available processors. Each
+    // series is computed on one thread and holds its input stack in memory.
+    public void setJobs(int jobs) {
+        if (jobs < 1) {
+            throw new IllegalArgumentException("jobs must be at least 1: " + jobs);
+        }
+        this.jobs = jobs;
+    }
+
+    public void setScale(double scale) {
+        if (!(scale >= 1)) {
+            throw new IllegalArgumentException("Scale factors must be at least 1");
+        }
+        this.scale = scale;
+    }
+
+    // Slices first to last (1-based, inclusive) of every series, 0 and 0 for all of them
+    public void setSliceRange(int first, int last) {
+        if (first < 0 || last < first || (first == 0) != (last == 0)) {
+            throw new IllegalArgumentException("Invalid slice range: " + first + "-" + last);
+        }
+        firstSlice = first;
+        lastSlice = last;
+    }
+
+    // File the metrics of every series are appended to as JSON lines, null for none
+    public void setMetricsFile(File metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        BatchUpsampler batch;
+        List<File> series;
+        try {
+            int i = 0;
+            int jobs = -1;
+            double scale = 2;
+            int[] slices = {0, 0};
+            File metricsFile = null;
+            for (; i < args.length && args[i].startsWith("-"); i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                if (args[i].equals("-jobs")) {
+                    jobs = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("-scale")) {
+                    scale = Double.parseDouble(args[i + 1]);
+                } else if (args[i].equals("-slices")) {
+                    String[] range = args[i + 1].split("-", 2);
+                    if (range.length != 2) {
+                        throw new IllegalArgumentException("Expected -slices A-B: " + args[i + 1]);
+                    }
+                    slices = new int[] {Integer.parseInt(range[0]), Integer.parseInt(range[1])};
+                } else if (args[i].equals("-metrics")) {
+                    metricsFile = new File(args[i + 1]);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (args.length - i != 3) {
+                throw new IllegalArgumentException("Expected an input, a kernel and an output directory");
+            }
+            batch = new BatchUpsampler(args[i + 1], new File(args[i + 2]));
+            if (jobs != -1) {
+                batch.setJobs(jobs);
+            }
+            batch.setScale(scale);
+            batch.setSliceRange(slices[0], slices[1]);
+            batch.setMetricsFile(metricsFile);
+            series = findSeries(new File(args[i]));
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        int failed = batch.run(series);
+        System.exit((failed == 0) ? 0 : 1);
+    }
+
+    // Upsamples every series and returns how many failed
+    public int run(List<File> series) {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            System.err.println("Cannot create " + outputDirectory);
+            return series.size();
+        }
+        long startTime = System.currentTimeMillis();
+
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(jobs, Math.max(1, series.size())));
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (File input : series) {
+                results.add(workers.submit(() -> {
+                    upsample(input);
+                    return null;
+                }));
+            }
+            int failed = 0;
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (Exception e) {
+                    Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+                    System.err.println(seriesName(series.get(i)) + ": failed, " + cause);
+                    failed++;
+                }
+            }
+
+            double runTimeSeconds = (System.currentTimeMillis() - startTime) / 1000.0;
+            System.out.println(series.size() + " series, " + failed + " failed, " + runTimeSeconds + " seconds");
+            return failed;
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    // Upsamples one series into <name>_RE.tif in the output directory
+    private void upsample(File input) throws IOException {
+        ImagePlus imp = input.isDirectory() ? FolderOpener.open(input.getPath()) : IJ.openImage(input.getPath());
+        if (imp == null) {
+            throw new IOException("Cannot open " + input);
+        }
+        UpsamplingEngine engine = new UpsamplingEngine(kernel(kernelName));
+        engine.setThreads(1);
+        engine.setScale(scale);
+        engine.setSliceRange(firstSlice, lastSlice);
+        File output = new File(outputDirectory, seriesName(input) + "_RE.tif");
+        new StreamingUpsampler(engine).upsample(imp, output, StackFileWriter.Format.TIFF);
+
+        RunMetrics metrics = engine.getLastMetrics();
+        int[] size = metrics.getInputSize();
+        int[] newSize = metrics.getOutputSize();
+        System.out.println(String.format(Locale.ROOT, "%s: %dx%dx%d -> %dx%dx%d, %.2f seconds, %.1f Mvoxels/s",
+                seriesName(input), size[0], size[1], size[2], newSize[0], newSize[1], newSize[2],
+                metrics.getTotalSeconds(), metrics.getVoxelsPerSecond() / 1e6));
+        if (metricsFile != null) {
+            appendMetrics(seriesName(input), metrics);
+        }
+    }
+
+    // One JSON line per series, with the series name added in front
+    private synchronized void appendMetrics(String name, RunMetrics metrics) throws IOException {
+        String line = "{\"series\":\"" + name.replace("\\", "\\\\").replace("\"", "\\\"") + "\","
+                + metrics.toJson().substring(1) + System.lineSeparator();
+        Files.write(metricsFile.toPath(), line.getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    // The TIFF files and subdirectories of a directory, or the paths listed in a file
+    static List<File> findSeries(File input) throws IOException {
+        List<File> series = new ArrayList<>();
+        if (input.isDirectory()) {
+            File[] files = input.listFiles();
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName().toLowerCase(Locale.ROOT);
+                if (file.isDirectory() || name.endsWith(".tif") || name.endsWith(".tiff")) {
+                    series.add(file);
+                }
+            }
+        } else if (input.isFile()) {
+            for (String line : Files.readAllLines(input.toPath(), StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    series.add(new File(line));
+                }
+            }
+        } else {
+            throw new IOException("No such directory or list file: " + input);
+        }
+        return series;
+    }
+
+    // Directory name, or file name without its extension
+    static String seriesName(File input) {
+        String name = input.getName();
+        int dot = name.lastIndexOf('.');
+        return (input.isDirectory() || dot <= 0) ? name : name.substring(0, dot);
+    }
+
+    // The kernel of a plugin, by plugin name with or without "_RE"
+    static VoxelKernel kernel(String name) {
+        switch (name.toLowerCase(Locale.ROOT).replace("_re", "")) {
+            case "linear":
+                return new LinearKernel();
+            case "quadratic":
+                return new QuadraticKernel();
+            case "cubic":
+                return new CubicKernel();
+            case "bilinear":
+                return new BilinearKernel();
+            case "bicubic":
+                return new BicubicKernel();
+            case "gradient":
+                return new GradientKernel();
+            default:
+                throw new IllegalArgumentException("Unknown kernel: " + name);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Catmull-Rom cubic interpolation over the 4 x 4 x 4 nearest voxels, used by
+ Bicubic_RE. It passes through the input voxels and keeps edges sharp, but can
+ overshoot slightly next to strong edges; results are clamped to the pixel range.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+public class BicubicKernel extends SeparableKernel {
+
+    @Override
+    public String getName() {
+        return "Bicubic (Catmull-Rom)";
+    }
+
+    @Override
+    public int getTaps() {
+        return 4;
+    }
+
+    @Override
+    public double weight(double distance) {
+        double d = Math.abs(distance);
+        if (d < 1) {
+            return 1.5 * d * d * d - 2.5 * d * d + 1;
+        }
+        if (d < 2) {
+            return -0.5 * d * d * d + 2.5 * d * d - 4 * d + 2;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Trilinear interpolation between the 2 x 2 x 2 nearest voxels, used by Bilinear_RE.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+public class BilinearKernel extends SeparableKernel {
+
+    @Override
+    public String getName() {
+        return "Trilinear";
+    }
+
+    @Override
+    public int getTaps() {
+        return 2;
+    }
+
+    @Override
+    public double weight(double distance) {
+        double d = Math.abs(distance);
+        return (d < 1) ? 1 - d : 0;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: How the UpsamplingEngine reads neighbors that fall outside the volume.
+ ZERO treats them as black, CLAMP repeats the edge voxel and MIRROR reflects the
+ volume at its edge (without repeating the edge voxel).
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+public enum EdgePolicy {
+
+    ZERO,
+    CLAMP,
+    MIRROR;
+
+    // Maps coordinate i of an axis with the given size back into [0, size),
+    // or returns -1 when the voxel should read as zero
+    public int resolve(int i, int size) {
+        if (i >= 0 && i < size) {
+            return i;
+        }
+        switch (this) {
+            case CLAMP:
+                return (i < 0) ? 0 : size - 1;
+            case MIRROR:
+                if (size == 1) {
+                    return 0;
+                }
+                int period = 2 * (size - 1);
+                int m = Math.floorMod(i, period);
+                return (m < size) ? m : period - m;
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Edge-aware kernel of Gradient_RE. Each new voxel is a weighted mean of the
+ input voxel it lies in and the four neighbors the UpsamplingEngine gathers, steered by
+ the gradient of the input at that voxel (a GradientVolume computed once per run). In
+ flat regions the weights are those of trilinear interpolation. Across an edge the
+ gradient predicts a large change toward some neighbors, and their weight drops with the
+ square of that change, so the new voxels interpolate along the edge and keep the value
+ of their own side of it: bone and soft tissue stay sharply apart.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+public class GradientKernel implements VoxelKernel {
+
+    // Weights of the center and of the x, y, x-y and z neighbors: those of trilinear
+    // interpolation a quarter of a voxel from the center along each axis, without the
+    // x-z, y-z and x-y-z corners, which are not gathered
+    private static final float CENTER_WEIGHT = 27;
+    private static final float X_WEIGHT = 9;
+    private static final float Y_WEIGHT = 9;
+    private static final float XY_WEIGHT = 3;
+    private static final float Z_WEIGHT = 9;
+
+    @Override
+    public String getName() {
+        return "Gradient";
+    }
+
+    // newRow[i] from centerRow[i], the input voxel new voxel i lies in, its neighbors
+    // neighborRows[0..3][i] as for RowKernel and gradientRows[a][i], the derivative at the
+    // center along axis a toward the side new voxel i lies on, in units of edge contrast
+    // (see GradientVolume). Rounded to the nearest value.
+    void combineRows(int[] centerRow, int[][] neighborRows, float[][] gradientRows, int[] newRow, int length) {
+        int[] sideX = neighborRows[0];
+        int[] sideY = neighborRows[1];
+        int[] sideXY = neighborRows[2];
+        int[] sideZ = neighborRows[3];
+        for (int i = 0; i < length; i++) {
+            float dx = gradientRows[0][i];
+            float dy = gradientRows[1][i];
+            float dz = gradientRows[2][i];
+            float dxy = dx + dy;
+            float weightX = X_WEIGHT / (1 + dx * dx);
+            float weightY = Y_WEIGHT / (1 + dy * dy);
+            float weightXY = XY_WEIGHT / (1 + dxy * dxy);
+            float weightZ = Z_WEIGHT / (1 + dz * dz);
+            float sum = CENTER_WEIGHT * centerRow[i] + weightX * sideX[i] + weightY * sideY[i]
+                    + weightXY * sideXY[i] + weightZ * sideZ[i];
+            newRow[i] = (int) (sum / (CENTER_WEIGHT + weightX + weightY + weightXY + weightZ) + 0.5f);
+        }
+    }
+
+    // Same as above for 32-bit stacks
+    void combineRows(float[] centerRow, float[][] neighborRows, float[][] gradientRows, float[] newRow,
+            int length) {
+        float[] sideX = neighborRows[0];
+        float[] sideY = neighborRows[1];
+        float[] sideXY = neighborRows[2];
+        float[] sideZ = neighborRows[3];
+        for (int i = 0; i < length; i++) {
+            float dx = gradientRows[0][i];
+            float dy = gradientRows[1][i];
+            float dz = gradientRows[2][i];
+            float dxy = dx + dy;
+            float weightX = X_WEIGHT / (1 + dx * dx);
+            float weightY = Y_WEIGHT / (1 + dy * dy);
+            float weightXY = XY_WEIGHT / (1 + dxy * dxy);
+            float weightZ = Z_WEIGHT / (1 + dz * dz);
+            float sum = CENTER_WEIGHT * centerRow[i] + weightX * sideX[i] + weightY * sideY[i]
+                    + weightXY * sideXY[i] + weightZ * sideZ[i];
+            newRow[i] = sum / (CENTER_WEIGHT + weightX + weightY + weightXY + weightZ);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: The 3D gradient of every voxel of a stack, for GradientKernel. It is computed
+ once per run, before any new voxel, with the 3x3x3 Sobel operator: a central difference
+ along one axis, smoothed by 1-2-1 along the other two, which keeps noise from looking
+ like an edge. Slices are split among the threads in runs of consecutive slices, so each
+ input slice is smoothed about once. Each component is stored as a short in units of a
+ fixed edge contrast, so the gradient of a voxel only depends on the voxels around it
+ (a region, a shard or an edited slice gives the same gradients), and takes 6 bytes per
+ input voxel whatever the bit depth. Sobel computes the same gradient one slice at a
+ time, for the modes that keep only a few input slices in memory.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import ij.ImageStack;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+final class GradientVolume {
+
+    // One unit of edge contrast, see GradientKernel: a gradient of a sixteenth of the
+    // value range per voxel, for 8-bit stacks and for 16-bit and 32-bit CT with a 12-bit
+    // range (0 to 4095, or Hounsfield units). Bone next to soft tissue is several units.
+    private static final float EDGE_CONTRAST_8_BIT = 16;
+    private static final float EDGE_CONTRAST = 256;
+
+    // Stored steps per unit of edge contrast. Gradients above 16 units are stored as 16,
+    // which GradientKernel already treats as a full edge.
+    private static final float STEPS_PER_UNIT = 2048;
+
+    // Sum of the weights of the Sobel operator on a unit gradient, 2 x 4 x 4
+    private static final float SOBEL_NORM = 32;
+
+    // Multiplies a stored component into units of edge contrast per voxel
+    static final float EDGE_UNIT = 1 / STEPS_PER_UNIT;
+
+    final int width;
+    final int height;
+    final int depth;
+
+    // Component a (x, y or z) of the gradient of voxel x, y in slice z, see EDGE_UNIT
+    final short[][][] components;
+
+    private GradientVolume(int width, int height, int depth) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        components = new short[depth][][];
+    }
+
+    // Gradient of every voxel of the stack, on threads threads. Voxels outside the stack
+    // read as the edge voxel. The pass stops with a CancellationException once engine is
+    // cancelled, and reports each slice it finishes to engine's progress.
+    static GradientVolume compute(ImageStack stack, int threads, UpsamplingEngine engine) {
+        return update(null, stack, null, threads, engine);
+    }
+
+    // Gradient of stack, given previous, the gradient of the same stack before the input
+    // slices marked in edited changed. Only the slices next to an edited slice are computed
+    // again; the others are shared with previous, whose slices are never written again.
+    // A null previous computes every slice. engine is used as in compute.
+    static GradientVolume update(GradientVolume previous, ImageStack stack, boolean[] edited, int threads,
+            UpsamplingEngine engine) {
+        GradientVolume volume = new GradientVolume(stack.getWidth(), stack.getHeight(), stack.getSize());
+        int depth = volume.depth;
+        int[] stale = new int[depth];
+        int staleCount = 0;
+        for (int z = 0; z < depth; z++) {
+            boolean reused = previous != null;
+            for (int near = Math.max(0, z - 1); reused && near <= Math.min(depth - 1, z + 1); near++) {
+                reused = !edited[near];
+            }
+            if (reused) {
+                volume.components[z] = previous.components[z];
+            } else {
+                stale[staleCount++] = z;
+            }
+        }
+        if (staleCount == 0) {
+            return volume;
+        }
+
+        IntFunction<Object> slices = z -> stack.getPixels(z + 1);
+        run(threads, staleCount, Math.min(staleCount, threads * 4), () -> {
+            Sobel sobel = new Sobel(volume.width, volume.height, depth, stack.getBitDepth());
+            return i -> {
+                short[][] gradient = new short[3][volume.width * volume.height];
+                sobel.compute(slices, stale[i], gradient);
+                volume.components[stale[i]] = gradient;
+            };
+        }, engine);
+        return volume;
+    }
+
+    // Calls a slice function for i = 0 to count - 1 on threads threads, in chunks runs of
+    // consecutive i. Each chunk takes a slice function of its own from newChunk. engine is
+    // checked for cancellation before each i and told of each one finished, so Cancel and
+    // the progress bar work during the pass.
+    private static void run(int threads, int count, int chunks, Supplier<IntConsumer> newChunk,
+            UpsamplingEngine engine) {
+        AtomicInteger done = new AtomicInteger();
+        IntConsumer chunkTask = chunk -> {
+            IntConsumer slice = newChunk.get();
+            for (int i = count * chunk / chunks; i < count * (chunk + 1) / chunks; i++) {
+                engine.checkCancelled();
+                slice.accept(i);
+                engine.reportProgress(done.incrementAndGet(), count);
+            }
+        };
+        if (threads == 1) {
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                chunkTask.accept(chunk);
+            }
+            return;
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(threads, chunks));
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                int index = chunk;
+                results.add(workers.submit(() -> chunkTask.accept(index)));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Gradient pass was interrupted");
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    // The gradient of one slice at a time, from the slice and the slices before and after
+    // it. Each input slice is smoothed in-plane once into three planes (derivative in x,
+    // derivative in y, smoothed), kept for the last three slices, so going through the
+    // slices in order reads and smooths each once; the 1-2-1 or difference along z
+    // combines them. Holds about 40 bytes per voxel of a slice, whatever the depth.
+    static final class Sobel {
+
+        private final int width;
+        private final int height;
+        private final int depth;
+        private final float toStored;
+        private final float[] values;
+        private final float[] row;
+        private final float[] smoothedY;
+        private final float[] derivedY;
+        // The x, y and z planes of slice planeZ[slot] are planes[slot], slot being z % 3
+        private final float[][][] planes;
+        private final int[] planeZ = {-1, -1, -1};
+        // The gradient gradient() returned last, of slice gradientZ
+        private final short[][] gradient;
+        private int gradientZ = -1;
+
+        Sobel(int width, int height, int depth, int bitDepth) {
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+            float edgeContrast = (bitDepth == 8) ? EDGE_CONTRAST_8_BIT : EDGE_CONTRAST;
+            // Stored steps per value unit of the Sobel sum
+            toStored = STEPS_PER_UNIT / edgeContrast / SOBEL_NORM;
+            int size = width * height;
+            values = new float[size];
+            row = new float[width];
+            smoothedY = new float[size];
+            derivedY = new float[size];
+            planes = new float[3][3][size];
+            gradient = new short[3][size];
+        }
+
+        // Gradient of slice z, as components[z] of a GradientVolume. slices returns the
+        // pixels of a 0-based input slice and is only asked for slices z - 1 to z + 1. The
+        // arrays are reused by the next call for another slice.
+        short[][] gradient(IntFunction<Object> slices, int z) {
+            if (gradientZ != z) {
+                compute(slices, z, gradient);
+                gradientZ = z;
+            }
+            return gradient;
+        }
+
+        // Forgets the kept planes and gradient, e.g. because the input slices changed
+        void clear() {
+            Arrays.fill(planeZ, -1);
+            gradientZ = -1;
+        }
+
+        void compute(IntFunction<Object> slices, int z, short[][] components) {
+            float[][] before = plane(slices, Math.max(0, z - 1));
+            float[][] current = plane(slices, z);
+            float[][] after = plane(slices, Math.min(depth - 1, z + 1));
+            for (int i = 0; i < width * height; i++) {
+                components[0][i] = stored((before[0][i] + 2 * current[0][i] + after[0][i]) * toStored);
+                components[1][i] = stored((before[1][i] + 2 * current[1][i] + after[1][i]) * toStored);
+                components[2][i] = stored((after[2][i] - before[2][i]) * toStored);
+            }
+        }
+
+        // The in-plane Sobel planes of slice z, from the three kept slots when they hold it
+        private float[][] plane(IntFunction<Object> slices, int z) {
+            int slot = z % 3;
+            if (planeZ[slot] == z) {
+                return planes[slot];
+            }
+            Object pixels = slices.apply(z);
+            for (int y = 0; y < height; y++) {
+                PixelRows.readAsFloat(pixels, width, y, row);
+                System.arraycopy(row, 0, values, y * width, width);
+            }
+            // Along y: 1-2-1 and difference, rows outside the slice read as the edge row
+            for (int y = 0; y < height; y++) {
+                int above = Math.max(0, y - 1) * width;
+                int offset = y * width;
+                int below = Math.min(height - 1, y + 1) * width;
+                for (int x = 0; x < width; x++) {
+                    smoothedY[offset + x] = values[above + x] + 2 * values[offset + x] + values[below + x];
+                    derivedY[offset + x] = values[below + x] - values[above + x];
+                }
+            }
+            // Along x: difference of smoothedY for the x derivative, 1-2-1 of derivedY for
+            // the y derivative and 1-2-1 of smoothedY for the plane the z derivative takes
+            float[] planeX = planes[slot][0];
+            float[] planeY = planes[slot][1];
+            float[] planeZSmoothed = planes[slot][2];
+            for (int y = 0; y < height; y++) {
+                int offset = y * width;
+                for (int x = 0; x < width; x++) {
+                    int left = offset + Math.max(0, x - 1);
+                    int right = offset + Math.min(width - 1, x + 1);
+                    planeX[offset + x] = smoothedY[right] - smoothedY[left];
+                    planeY[offset + x] = derivedY[left] + 2 * derivedY[offset + x] + derivedY[right];
+                    planeZSmoothed[offset + x] = smoothedY[left] + 2 * smoothedY[offset + x] + smoothedY[right];
+                }
+            }
+            planeZ[slot] = z;
+            return planes[slot];
+        }
+
+        private static short stored(float value) {
+            return (short) Math.max(-Short.MAX_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+        }
+    }
+}
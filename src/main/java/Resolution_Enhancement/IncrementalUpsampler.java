@@ -0,0 +1,213 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Re-runs of the UpsamplingEngine on an image whose slices are being edited or
+ masked. It keeps a fingerprint of every input slice and the result of the last run;
+ the next run only recomputes the new slices that read a slice whose fingerprint
+ changed, directly in that result, and keeps the others. Fingerprinting reads each
+ input voxel once, which costs a small fraction of computing the eight or more new
+ voxels it becomes, so editing a few slices costs about as much as those slices. For a
+ GradientKernel that includes the slices next to them, whose gradient is computed again
+ while the rest of the last run's gradient is reused.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+public class IncrementalUpsampler {
+
+    private static final long FINGERPRINT_MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+    private final UpsamplingEngine engine;
+
+    // The last run: its plan (with the gradient a GradientKernel read) and edge policy,
+    // the fingerprints of its input slices and its result, or null before the first run
+    private UpsamplingEngine.Plan lastPlan;
+    private EdgePolicy lastEdgePolicy;
+    private long[] fingerprints;
+    private ImagePlus result;
+    private int recomputedSlices;
+
+    public IncrementalUpsampler(UpsamplingEngine engine) {
+        this.engine = engine;
+    }
+
+    // Upsamples imp like engine.run(imp) the first time. Later runs recompute only the new
+    // slices whose input slices changed since the run before, in the image the first run
+    // returned, and return that image. A different input size, region, scale, edge policy
+    // or bit depth, or a result whose stack was replaced, makes a run start over.
+    public ImagePlus run(ImagePlus imp) {
+        UpsamplingEngine.Plan plan = engine.plan(imp);
+        long fingerprintStart = System.nanoTime();
+        long[] newFingerprints = new long[plan.z.size];
+        for (int z = 0; z < plan.z.size; z++) {
+            newFingerprints[z] = fingerprint(plan.input.getPixels(z + 1));
+        }
+        long fingerprintNanos = System.nanoTime() - fingerprintStart;
+
+        if (!matches(plan)) {
+            result = engine.run(imp, plan);
+            remember(plan, newFingerprints);
+            recomputedSlices = plan.z.newSize;
+            return result;
+        }
+
+        RunMetrics metrics = engine.newMetrics(plan, engine.getThreads());
+        // Fingerprinting is the part of the compute phase that finds what to compute
+        long computeStart = System.nanoTime() - fingerprintNanos;
+        boolean[] edited = new boolean[plan.z.size];
+        for (int z = 0; z < plan.z.size; z++) {
+            edited[z] = newFingerprints[z] != fingerprints[z];
+        }
+        // The gradient a GradientKernel reads at a slice also reads the slices next to it;
+        // only those slices of the last run's gradient are computed again
+        int reach = 0;
+        if (plan.steered) {
+            plan.updateGradients(lastPlan, edited, engine);
+            reach = 1;
+        }
+        boolean[] changed = new boolean[plan.z.size];
+        for (int z = 0; z < plan.z.size; z++) {
+            for (int near = Math.max(0, z - reach); near <= Math.min(plan.z.size - 1, z + reach); near++) {
+                changed[z] |= edited[near];
+            }
+        }
+        boolean[] stale = new boolean[plan.z.newSize];
+        int staleSlices = 0;
+        for (int newZ = 0; newZ < plan.z.newSize; newZ++) {
+            stale[newZ] = plan.z.reads(newZ, changed, lastEdgePolicy);
+            staleSlices += stale[newZ] ? 1 : 0;
+        }
+        metrics.setTotalSlices(staleSlices);
+
+        ImageStack newStack = result.getStack();
+        Object[] newPixels = new Object[plan.z.newSize];
+        for (int newZ = 0; newZ < plan.z.newSize; newZ++) {
+            newPixels[newZ] = newStack.getPixels(newZ + 1);
+        }
+        // Each run of consecutive stale slices is split into slabs like a whole volume
+        for (int newZ = 0; newZ < plan.z.newSize; newZ++) {
+            if (stale[newZ]) {
+                int newZEnd = newZ + 1;
+                while (newZEnd < plan.z.newSize && stale[newZEnd]) {
+                    newZEnd++;
+                }
+                engine.upsample(plan, newPixels, newZ, newZEnd, metrics);
+                newZ = newZEnd;
+            }
+        }
+        metrics.addTime(RunMetrics.Phase.COMPUTE, computeStart);
+
+        long outputStart = System.nanoTime();
+        result.updateAndDraw();
+        metrics.addTime(RunMetrics.Phase.OUTPUT, outputStart);
+        remember(plan, newFingerprints);
+        recomputedSlices = staleSlices;
+        engine.finish(metrics);
+        return result;
+    }
+
+    // New slices the last run computed
+    public int getRecomputedSlices() {
+        return recomputedSlices;
+    }
+
+    // Forgets the last run, so the next one recomputes every slice into a new image
+    public void reset() {
+        lastPlan = null;
+        lastEdgePolicy = null;
+        fingerprints = null;
+        result = null;
+    }
+
+    private void remember(UpsamplingEngine.Plan plan, long[] newFingerprints) {
+        lastPlan = plan;
+        lastEdgePolicy = engine.getEdgePolicy();
+        fingerprints = newFingerprints;
+    }
+
+    // Whether plan maps the input to the same new voxels as the last run did, so the
+    // slices of its result are still valid where their input slices did not change
+    private boolean matches(UpsamplingEngine.Plan plan) {
+        if (lastPlan == null || lastEdgePolicy != engine.getEdgePolicy() || lastPlan.bitDepth != plan.bitDepth
+                || !sameMapping(lastPlan.x, plan.x) || !sameMapping(lastPlan.y, plan.y)
+                || !sameMapping(lastPlan.z, plan.z)) {
+            return false;
+        }
+        ImageStack newStack = result.getStack();
+        return result.getBitDepth() == plan.bitDepth && newStack.getWidth() == plan.x.newSize
+                && newStack.getHeight() == plan.y.newSize && newStack.getSize() == plan.z.newSize;
+    }
+
+    private static boolean sameMapping(AxisMapping a, AxisMapping b) {
+        return a.size == b.size && a.newSize == b.newSize && a.first == b.first && a.newFirst == b.newFirst;
+    }
+
+    // 64-bit hash of the pixels of a slice. Four interleaved lanes keep the loop from
+    // being one long chain of multiplies.
+    static long fingerprint(Object pixels) {
+        long h0 = 1;
+        long h1 = 2;
+        long h2 = 3;
+        long h3 = 4;
+        int i = 0;
+        if (pixels instanceof byte[]) {
+            byte[] bytes = (byte[]) pixels;
+            for (; i + 3 < bytes.length; i += 4) {
+                h0 = (h0 + bytes[i]) * FINGERPRINT_MULTIPLIER;
+                h1 = (h1 + bytes[i + 1]) * FINGERPRINT_MULTIPLIER;
+                h2 = (h2 + bytes[i + 2]) * FINGERPRINT_MULTIPLIER;
+                h3 = (h3 + bytes[i + 3]) * FINGERPRINT_MULTIPLIER;
+            }
+            for (; i < bytes.length; i++) {
+                h0 = (h0 + bytes[i]) * FINGERPRINT_MULTIPLIER;
+            }
+        } else if (pixels instanceof short[]) {
+            short[] shorts = (short[]) pixels;
+            for (; i + 3 < shorts.length; i += 4) {
+                h0 = (h0 + shorts[i]) * FINGERPRINT_MULTIPLIER;
+                h1 = (h1 + shorts[i + 1]) * FINGERPRINT_MULTIPLIER;
+                h2 = (h2 + shorts[i + 2]) * FINGERPRINT_MULTIPLIER;
+                h3 = (h3 + shorts[i + 3]) * FINGERPRINT_MULTIPLIER;
+            }
+            for (; i < shorts.length; i++) {
+                h0 = (h0 + shorts[i]) * FINGERPRINT_MULTIPLIER;
+            }
+        } else {
+            float[] floats = (float[]) pixels;
+            for (; i + 3 < floats.length; i += 4) {
+                h0 = (h0 + Float.floatToRawIntBits(floats[i])) * FINGERPRINT_MULTIPLIER;
+                h1 = (h1 + Float.floatToRawIntBits(floats[i + 1])) * FINGERPRINT_MULTIPLIER;
+                h2 = (h2 + Float.floatToRawIntBits(floats[i + 2])) * FINGERPRINT_MULTIPLIER;
+                h3 = (h3 + Float.floatToRawIntBits(floats[i + 3])) * FINGERPRINT_MULTIPLIER;
+            }
+            for (; i < floats.length; i++) {
+                h0 = (h0 + Float.floatToRawIntBits(floats[i])) * FINGERPRINT_MULTIPLIER;
+            }
+        }
+        // Mixes the lanes so that swapping voxels between them changes the hash
+        long hash = h0;
+        hash = (hash ^ (hash >>> 31) ^ h1) * FINGERPRINT_MULTIPLIER;
+        hash = (hash ^ (hash >>> 31) ^ h2) * FINGERPRINT_MULTIPLIER;
+        hash = (hash ^ (hash >>> 31) ^ h3) * FINGERPRINT_MULTIPLIER;
+        return hash ^ (hash >>> 31);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: An upsampled stack that is computed on demand. Nothing is computed when it is
+ created; new slice k is computed the first time ImageJ asks for it, from the input slice it
+ lies in and the slices next to it, and the most recently viewed slices are kept in a bounded LRU
+ cache. The first image shows in milliseconds instead of after the whole volume.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+public class LazyUpsampledStack extends VirtualStack {
+
+    public static final int DEFAULT_CACHE_SIZE = 64;
+
+    private final UpsamplingEngine engine;
+    private final int bitDepth;
+    private final int newDepth;
+    private final IntFunction<Object> slices;
+    private final UpsamplingEngine.Scratch scratch;
+    private final Map<Integer, Object> cache;
+
+    public LazyUpsampledStack(UpsamplingEngine engine, ImageStack stack) {
+        this(engine, stack, DEFAULT_CACHE_SIZE);
+    }
+
+    // cacheSize is the number of new slices kept in memory
+    public LazyUpsampledStack(UpsamplingEngine engine, ImageStack stack, int cacheSize) {
+        this(engine, engine.plan(stack), cacheSize);
+    }
+
+    LazyUpsampledStack(UpsamplingEngine engine, UpsamplingEngine.Plan plan, int cacheSize) {
+        super(plan.x.newSize, plan.y.newSize, null, null);
+        if (cacheSize < 1) {
+            throw new IllegalArgumentException("cacheSize must be at least 1: " + cacheSize);
+        }
+        this.engine = engine;
+        bitDepth = plan.bitDepth;
+        newDepth = plan.z.newSize;
+        setBitDepth(bitDepth);
+        slices = z -> plan.input.getPixels(z + 1);
+        scratch = new UpsamplingEngine.Scratch(plan);
+        cache = new LinkedHashMap<Integer, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Object> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        Object pixels = getNewSlice(n - 1);
+        int width = getWidth();
+        int height = getHeight();
+        switch (bitDepth) {
+            case 8:
+                return new ByteProcessor(width, height, (byte[]) pixels, null);
+            case 16:
+                return new ShortProcessor(width, height, (short[]) pixels, null);
+            default:
+                return new FloatProcessor(width, height, (float[]) pixels, null);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return newDepth;
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return null;
+    }
+
+    // Pixels of new slice k (0-based)
+    private synchronized Object getNewSlice(int k) {
+        Object pixels = cache.get(k);
+        if (pixels == null) {
+            pixels = UpsamplingEngine.newPixels(bitDepth, getWidth() * getHeight());
+            engine.upsampleSlice(slices, k, pixels, scratch);
+            cache.put(k, pixels);
+        }
+        return pixels;
+    }
+}
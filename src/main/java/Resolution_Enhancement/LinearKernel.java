@@ -0,0 +1,73 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Linear average of the neighboring voxels, used by Linear_RE.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+public class LinearKernel implements RowKernel {
+
+    @Override
+    public String getName() {
+        return "Linear Average";
+    }
+
+    @Override
+    public int combine(int[] neighbors) {
+        int sum = 0;
+        for (int value : neighbors) {
+            sum += value;
+        }
+        return sum / neighbors.length;
+    }
+
+    @Override
+    public float combine(float[] neighbors) {
+        float sum = 0;
+        for (float value : neighbors) {
+            sum += value;
+        }
+        return sum / neighbors.length;
+    }
+
+    @Override
+    public void combineRows(int[][] neighborRows, int[] newRow, int length) {
+        int start = VectorSupport.ENABLED ? VectorSupport.ROWS.average(neighborRows, newRow, length) : 0;
+        for (int i = start; i < length; i++) {
+            int sum = 0;
+            for (int[] row : neighborRows) {
+                sum += row[i];
+            }
+            newRow[i] = sum / neighborRows.length;
+        }
+    }
+
+    @Override
+    public void combineRows(float[][] neighborRows, float[] newRow, int length) {
+        int start = VectorSupport.ENABLED ? VectorSupport.ROWS.average(neighborRows, newRow, length) : 0;
+        for (int i = start; i < length; i++) {
+            float sum = 0;
+            for (float[] row : neighborRows) {
+                sum += row[i];
+            }
+            newRow[i] = sum / neighborRows.length;
+        }
+    }
+}
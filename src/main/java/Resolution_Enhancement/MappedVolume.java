@@ -0,0 +1,231 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: A volume of 8-bit, 16-bit or 32-bit voxels kept in a memory-mapped file instead
+ of on the heap, for upsampled results larger than 2 GB. The file is mapped in chunks of
+ whole slices (each mapping is limited to 2 GB) and voxel positions are long indices.
+ Voxels are stored little-endian, slice after slice, so the file can also be opened with
+ File > Import > Raw. getStack() shows the volume in ImageJ as a virtual stack.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MappedVolume implements Closeable {
+
+    private final RandomAccessFile file;
+    private final int width;
+    private final int height;
+    private final int depth;
+    private final int bitDepth;
+    private final int bytesPerVoxel;
+    private final long sliceBytes;
+    private final int slicesPerChunk;
+    private final MappedByteBuffer[] chunks;
+
+    private MappedVolume(File path, int width, int height, int depth, int bitDepth, boolean writable)
+            throws IOException {
+        UpsamplingEngine.checkBitDepth(bitDepth);
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.bitDepth = bitDepth;
+        bytesPerVoxel = bitDepth / 8;
+        sliceBytes = (long) width * height * bytesPerVoxel;
+        if (sliceBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A single slice must be smaller than 2 GB");
+        }
+        slicesPerChunk = (int) (Integer.MAX_VALUE / sliceBytes);
+
+        file = new RandomAccessFile(path, writable ? "rw" : "r");
+        long size = getSizeInBytes();
+        if (writable) {
+            file.setLength(size);
+        } else if (file.length() < size) {
+            file.close();
+            throw new IOException(path + " is smaller than a " + width + "x" + height + "x" + depth + " volume");
+        }
+
+        FileChannel channel = file.getChannel();
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        chunks = new MappedByteBuffer[(depth + slicesPerChunk - 1) / slicesPerChunk];
+        for (int i = 0; i < chunks.length; i++) {
+            long position = (long) i * slicesPerChunk * sliceBytes;
+            long length = Math.min((long) slicesPerChunk * sliceBytes, size - position);
+            chunks[i] = channel.map(mode, position, length);
+            chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    // Creates (or overwrites) file with room for a zero-filled volume
+    public static MappedVolume create(File file, int width, int height, int depth, int bitDepth)
+            throws IOException {
+        return new MappedVolume(file, width, height, depth, bitDepth, true);
+    }
+
+    // Maps an existing volume file read-only
+    public static MappedVolume open(File file, int width, int height, int depth, int bitDepth)
+            throws IOException {
+        return new MappedVolume(file, width, height, depth, bitDepth, false);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    public long getVoxelCount() {
+        return (long) width * height * depth;
+    }
+
+    public long getSizeInBytes() {
+        return getVoxelCount() * bytesPerVoxel;
+    }
+
+    // Value of the voxel at x, y, z (all 0-based)
+    public float getVoxel(int x, int y, int z) {
+        long index = ((long) z * height + y) * width + x;
+        int chunk = (int) (index / ((long) slicesPerChunk * width * height));
+        int offset = (int) ((index - (long) chunk * slicesPerChunk * width * height) * bytesPerVoxel);
+        switch (bitDepth) {
+            case 8:
+                return chunks[chunk].get(offset) & 0xff;
+            case 16:
+                return chunks[chunk].getShort(offset) & 0xffff;
+            default:
+                return chunks[chunk].getFloat(offset);
+        }
+    }
+
+    // Copies the byte[], short[] or float[] pixels of a slice into slice z (0-based).
+    // Different slices may be written from different threads at the same time.
+    public void putSlice(int z, Object pixels) {
+        ByteBuffer slice = sliceBuffer(z);
+        if (pixels instanceof byte[]) {
+            slice.put((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            slice.asShortBuffer().put((short[]) pixels);
+        } else {
+            slice.asFloatBuffer().put((float[]) pixels);
+        }
+    }
+
+    // Copies slice z (0-based) into a new byte[], short[] or float[]
+    public Object getSlice(int z) {
+        ByteBuffer slice = sliceBuffer(z);
+        Object pixels = UpsamplingEngine.newPixels(bitDepth, width * height);
+        if (pixels instanceof byte[]) {
+            slice.get((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            slice.asShortBuffer().get((short[]) pixels);
+        } else {
+            slice.asFloatBuffer().get((float[]) pixels);
+        }
+        return pixels;
+    }
+
+    // The volume as an ImageJ virtual stack that reads each slice from the file when shown
+    public ImageStack getStack() {
+        return new MappedStack();
+    }
+
+    // Writes changes in the mapped chunks back to the file
+    public void flush() {
+        for (MappedByteBuffer chunk : chunks) {
+            if (!chunk.isReadOnly()) {
+                chunk.force();
+            }
+        }
+    }
+
+    // The mappings stay valid until they are garbage collected, so a stack from getStack()
+    // keeps working after close()
+    @Override
+    public void close() throws IOException {
+        flush();
+        file.close();
+    }
+
+    // A private view of slice z, so threads working on different slices do not share a position
+    private ByteBuffer sliceBuffer(int z) {
+        if (z < 0 || z >= depth) {
+            throw new IllegalArgumentException("Slice " + z + " is outside the volume");
+        }
+        ByteBuffer slice = chunks[z / slicesPerChunk].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int offset = (int) ((z % slicesPerChunk) * sliceBytes);
+        slice.position(offset).limit(offset + (int) sliceBytes);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private class MappedStack extends VirtualStack {
+
+        MappedStack() {
+            super(width, height, null, null);
+            setBitDepth(bitDepth);
+        }
+
+        @Override
+        public ImageProcessor getProcessor(int n) {
+            Object pixels = getSlice(n - 1);
+            switch (bitDepth) {
+                case 8:
+                    return new ByteProcessor(width, height, (byte[]) pixels, null);
+                case 16:
+                    return new ShortProcessor(width, height, (short[]) pixels, null);
+                default:
+                    return new FloatProcessor(width, height, (float[]) pixels, null);
+            }
+        }
+
+        @Override
+        public int getSize() {
+            return depth;
+        }
+
+        @Override
+        public String getSliceLabel(int n) {
+            return null;
+        }
+    }
+}
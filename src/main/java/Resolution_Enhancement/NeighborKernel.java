@@ -0,0 +1,34 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: A VoxelKernel that turns the four neighboring voxels gathered by the
+ UpsamplingEngine (on the new voxel's side in x, in y, diagonally in x-y and in z) into
+ the value of a single new subvoxel, one new voxel per call.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+public interface NeighborKernel extends VoxelKernel {
+
+    // Returns the new subvoxel value for the given neighboring voxel values (8-bit and 16-bit)
+    int combine(int[] neighbors);
+
+    // Same as above for 32-bit stacks
+    float combine(float[] neighbors);
+}
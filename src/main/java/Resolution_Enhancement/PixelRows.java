@@ -0,0 +1,109 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Copies single rows between the raw pixel arrays of ImageJ slices (byte[],
+ short[] and float[] from getPixels()) and the int/float row buffers the
+ UpsamplingEngine works on, without going through ImageProcessor.getPixel/putPixel.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+final class PixelRows {
+
+    private PixelRows() {
+    }
+
+    // Copies row y of an 8-bit or 16-bit slice into row, starting at rowOffset, as unsigned values
+    static void read(Object pixels, int width, int y, int[] row, int rowOffset) {
+        int offset = y * width;
+        if (pixels instanceof byte[]) {
+            byte[] bytes = (byte[]) pixels;
+            for (int x = 0; x < width; x++) {
+                row[rowOffset + x] = bytes[offset + x] & 0xff;
+            }
+        } else {
+            short[] shorts = (short[]) pixels;
+            for (int x = 0; x < width; x++) {
+                row[rowOffset + x] = shorts[offset + x] & 0xffff;
+            }
+        }
+    }
+
+    // Copies row y of a 32-bit slice into row, starting at rowOffset
+    static void read(float[] pixels, int width, int y, float[] row, int rowOffset) {
+        System.arraycopy(pixels, y * width, row, rowOffset, width);
+    }
+
+    // Copies row y of any slice into row as float values
+    static void readAsFloat(Object pixels, int width, int y, float[] row) {
+        int offset = y * width;
+        if (pixels instanceof byte[]) {
+            byte[] bytes = (byte[]) pixels;
+            for (int x = 0; x < width; x++) {
+                row[x] = bytes[offset + x] & 0xff;
+            }
+        } else if (pixels instanceof short[]) {
+            short[] shorts = (short[]) pixels;
+            for (int x = 0; x < width; x++) {
+                row[x] = shorts[offset + x] & 0xffff;
+            }
+        } else {
+            System.arraycopy(pixels, offset, row, 0, width);
+        }
+    }
+
+    // Copies the first length values of row into an 8-bit or 16-bit slice at offset,
+    // clamping like putPixel does
+    static void write(int[] row, int length, Object pixels, int offset) {
+        if (pixels instanceof byte[]) {
+            byte[] bytes = (byte[]) pixels;
+            for (int x = 0; x < length; x++) {
+                bytes[offset + x] = (byte) Math.max(0, Math.min(255, row[x]));
+            }
+        } else {
+            short[] shorts = (short[]) pixels;
+            for (int x = 0; x < length; x++) {
+                shorts[offset + x] = (short) Math.max(0, Math.min(65535, row[x]));
+            }
+        }
+    }
+
+    // Copies the first length values of row into a 32-bit slice at offset
+    static void write(float[] row, int length, float[] pixels, int offset) {
+        System.arraycopy(row, 0, pixels, offset, length);
+    }
+
+    // Copies a whole slice of float values into pixels, rounding to the nearest value
+    // and clamping for 8-bit and 16-bit slices
+    static void writeRounded(float[] values, Object pixels) {
+        if (pixels instanceof byte[]) {
+            byte[] bytes = (byte[]) pixels;
+            for (int i = 0; i < values.length; i++) {
+                bytes[i] = (byte) Math.max(0, Math.min(255, Math.round(values[i])));
+            }
+        } else if (pixels instanceof short[]) {
+            short[] shorts = (short[]) pixels;
+            for (int i = 0; i < values.length; i++) {
+                shorts[i] = (short) Math.max(0, Math.min(65535, Math.round(values[i])));
+            }
+        } else {
+            System.arraycopy(values, 0, pixels, 0, values.length);
+        }
+    }
+}
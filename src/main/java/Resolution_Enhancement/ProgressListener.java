@@ -0,0 +1,30 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+ PURPOSE: Receives the progress of an UpsamplingEngine run in place of the "Status"
+ lines in the log, e.g. to drive a progress bar. It is called from the worker threads,
+ once for each new slice that is finished, and before those once for each input slice of
+ the gradient pass of a GradientKernel.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+public interface ProgressListener {
+
+    void progress(int slicesDone, int totalSlices);
+}
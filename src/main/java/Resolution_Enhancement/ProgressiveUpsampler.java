@@ -0,0 +1,209 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Progressive mode of the UpsamplingEngine. preview() returns the upsampled image
+ right away, filled with the nearest input voxel of every new voxel, which costs little
+ more than allocating the new stack. refine() then replaces its slices with the engine's
+ kernel on the engine's threads. Each worker takes the unrefined slice closest to the
+ slice being viewed, so scrolling through the preview moves the refinement along with it.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+public class ProgressiveUpsampler {
+
+    private final UpsamplingEngine engine;
+    private UpsamplingEngine.Plan plan;
+    private ImagePlus preview;
+    private RunMetrics metrics;
+
+    // Slices refined so far, guarded by this
+    private boolean[] refined;
+    private int slicesTaken;
+
+    public ProgressiveUpsampler(UpsamplingEngine engine) {
+        this.engine = engine;
+    }
+
+    // Upsamples imp by nearest neighbor, within its area ROI unless the engine has bounds,
+    // and returns it as a new, not yet shown, image with the size and calibration of the
+    // final result. It shows the new slice of the slice imp shows.
+    public ImagePlus preview(ImagePlus imp) {
+        plan = engine.plan(imp);
+        metrics = engine.newMetrics(plan, engine.getThreads());
+
+        // The preview counts as allocating the new stack
+        long allocationStart = System.nanoTime();
+        int newWidth = plan.x.newSize;
+        int newHeight = plan.y.newSize;
+        ImageStack newStack = new ImageStack(newWidth, newHeight);
+        for (int newZ = 0; newZ < plan.z.newSize; newZ++) {
+            int z = plan.z.source[newZ];
+            Object newPixels;
+            if (newZ > 0 && plan.z.source[newZ - 1] == z) {
+                newPixels = UpsamplingEngine.newPixels(plan.bitDepth, newWidth * newHeight);
+                System.arraycopy(newStack.getPixels(newZ), 0, newPixels, 0, newWidth * newHeight);
+            } else {
+                newPixels = nearest(plan.input.getPixels(z + 1));
+            }
+            newStack.addSlice(plan.input.getSliceLabel(z + 1), newPixels);
+        }
+        preview = engine.newImage(imp, newStack, plan);
+        metrics.addTime(RunMetrics.Phase.ALLOCATION, allocationStart);
+
+        int viewed = imp.getCurrentSlice() - 1 - plan.z.first;
+        int newZ = 0;
+        while (newZ < plan.z.newSize - 1 && plan.z.source[newZ] < viewed) {
+            newZ++;
+        }
+        preview.setSlice(newZ + 1);
+
+        refined = new boolean[plan.z.newSize];
+        slicesTaken = 0;
+        return preview;
+    }
+
+    // Replaces every slice of the preview with the engine's kernel and returns when all
+    // are done. Throws CancellationException when the engine is cancelled, leaving the
+    // slices that were not refined yet as they are.
+    public void refine() {
+        if (preview == null) {
+            throw new IllegalStateException("preview() must be called first");
+        }
+        long computeStart = System.nanoTime();
+        int threads = Math.min(engine.getThreads(), plan.z.newSize);
+        // Every slice gets refined, and the workers take slices far apart, so the gradient
+        // pass of a GradientKernel is done once for all of them
+        if (plan.steered) {
+            plan.gradients(threads, engine);
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(workers.submit(this::refineSlices));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            engine.cancel();
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Refinement was interrupted");
+        } finally {
+            workers.shutdown();
+        }
+        metrics.addTime(RunMetrics.Phase.COMPUTE, computeStart);
+        engine.finish(metrics);
+    }
+
+    // One worker: computes slices into its own buffer and copies each finished one into
+    // the preview at once, so the preview never shows a half refined slice
+    private void refineSlices() {
+        IntFunction<Object> slices = z -> plan.input.getPixels(z + 1);
+        UpsamplingEngine.Scratch scratch = new UpsamplingEngine.Scratch(plan);
+        int sliceSize = plan.x.newSize * plan.y.newSize;
+        Object newPixels = UpsamplingEngine.newPixels(plan.bitDepth, sliceSize);
+
+        for (int newZ = nextSlice(); newZ >= 0; newZ = nextSlice()) {
+            engine.checkCancelled();
+            engine.upsampleSlice(slices, newZ, newPixels, scratch);
+            System.arraycopy(newPixels, 0, preview.getStack().getPixels(newZ + 1), 0, sliceSize);
+            if (preview.getCurrentSlice() == newZ + 1) {
+                preview.updateAndDraw();
+            }
+            metrics.slabDone(sliceSize);
+            engine.reportProgress(metrics.sliceDone(), plan.z.newSize);
+        }
+    }
+
+    // The unrefined slice closest to the one being viewed, or -1 when none is left
+    private synchronized int nextSlice() {
+        if (slicesTaken == refined.length) {
+            return -1;
+        }
+        int viewed = preview.getCurrentSlice() - 1;
+        for (int distance = 0; ; distance++) {
+            if (viewed + distance < refined.length && !refined[viewed + distance]) {
+                return take(viewed + distance);
+            }
+            if (viewed - distance >= 0 && !refined[viewed - distance]) {
+                return take(viewed - distance);
+            }
+        }
+    }
+
+    private int take(int newZ) {
+        refined[newZ] = true;
+        slicesTaken++;
+        return newZ;
+    }
+
+    // New slice filled with the nearest voxel of the input slice pixels. New rows with the
+    // same input row are copied from the row before.
+    private Object nearest(Object pixels) {
+        int width = plan.x.size;
+        int newWidth = plan.x.newSize;
+        Object newPixels = UpsamplingEngine.newPixels(plan.bitDepth, newWidth * plan.y.newSize);
+        for (int newY = 0; newY < plan.y.newSize; newY++) {
+            int offset = newY * newWidth;
+            if (newY > 0 && plan.y.source[newY - 1] == plan.y.source[newY]) {
+                System.arraycopy(newPixels, offset - newWidth, newPixels, offset, newWidth);
+                continue;
+            }
+            int sourceOffset = plan.y.source[newY] * width;
+            if (pixels instanceof byte[]) {
+                byte[] bytes = (byte[]) pixels;
+                byte[] newBytes = (byte[]) newPixels;
+                for (int newX = 0; newX < newWidth; newX++) {
+                    newBytes[offset + newX] = bytes[sourceOffset + plan.x.source[newX]];
+                }
+            } else if (pixels instanceof short[]) {
+                short[] shorts = (short[]) pixels;
+                short[] newShorts = (short[]) newPixels;
+                for (int newX = 0; newX < newWidth; newX++) {
+                    newShorts[offset + newX] = shorts[sourceOffset + plan.x.source[newX]];
+                }
+            } else {
+                float[] floats = (float[]) pixels;
+                float[] newFloats = (float[]) newPixels;
+                for (int newX = 0; newX < newWidth; newX++) {
+                    newFloats[offset + newX] = floats[sourceOffset + plan.x.source[newX]];
+                }
+            }
+        }
+        return newPixels;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Quadratic average (also known as root mean square) of the neighboring voxels,
+ used by Quadratic_RE.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+public class QuadraticKernel implements RowKernel {
+
+    @Override
+    public String getName() {
+        return "RMS (Quadratic)";
+    }
+
+    @Override
+    public int combine(int[] neighbors) {
+        return rootMeanSquare(neighbors);
+    }
+
+    @Override
+    public void combineRows(int[][] neighborRows, int[] newRow, int length) {
+        int start = VectorSupport.ENABLED ? VectorSupport.ROWS.rootMeanSquare(neighborRows, newRow, length) : 0;
+        for (int i = start; i < length; i++) {
+            long sumOfSquares = 0;
+            for (int[] row : neighborRows) {
+                sumOfSquares += (long) row[i] * row[i];
+            }
+            newRow[i] = squareRoot(sumOfSquares / neighborRows.length);
+        }
+    }
+
+    @Override
+    public void combineRows(float[][] neighborRows, float[] newRow, int length) {
+        int start = VectorSupport.ENABLED ? VectorSupport.ROWS.rootMeanSquare(neighborRows, newRow, length) : 0;
+        for (int i = start; i < length; i++) {
+            double sumOfSquares = 0.0;
+            for (float[] row : neighborRows) {
+                sumOfSquares += row[i] * row[i];
+            }
+            newRow[i] = (float) Math.sqrt(sumOfSquares / neighborRows.length);
+        }
+    }
+
+    // Integer RMS of 8-bit and 16-bit values, rounded down. Squares are summed as long
+    // because a 16-bit square does not fit in an int, and the mean is truncated before
+    // the root, which gives the same result as the root of the exact mean.
+    static int rootMeanSquare(int[] values) {
+        long sumOfSquares = 0;
+        for (int value : values) {
+            sumOfSquares += (long) value * value;
+        }
+        return squareRoot(sumOfSquares / values.length);
+    }
+
+    // Square root of n rounded down. Exact for n below 2^52 (here at most 65535^2),
+    // where n converts to double without rounding and sqrt is correctly rounded.
+    static int squareRoot(long n) {
+        return (int) Math.sqrt(n);
+    }
+
+    @Override
+    public float combine(float[] neighbors) {
+
+        double sumOfSquares = 0.0;
+        for (float pixel : neighbors) {
+            sumOfSquares += pixel * pixel;
+        }
+
+        return (float) Math.sqrt(sumOfSquares / neighbors.length);
+    }
+}
@@ -0,0 +1,403 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Measures how close each kernel gets to the truth next to how fast it is. It
+ builds synthetic CT-like phantoms at full resolution, averages every 2x2x2 block of
+ voxels into one (a scan with twice the voxel size), upsamples that by 2 with each
+ kernel and compares the result with the phantom. Runs headless, without any data:
+
+   java -cp ij.jar:Resolution_Enhancement.jar Resolution_Enhancement.QualityEvaluation
+        [-size WxHxD] [-bits B] [-runs N] [-threads N] [-kernels K1,K2,...]
+
+ Prints one table row per phantom and kernel with the PSNR and the mean SSIM of the
+ slices, the new voxels per second of the fastest of N runs and the peak heap.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import ij.ImageStack;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+public class QualityEvaluation {
+
+    private static final String USAGE = "Usage: QualityEvaluation [-size WxHxD] [-bits B] [-runs N] [-threads N]"
+            + " [-kernels K1,K2,...]";
+
+    // Phantom values: air, fat, soft tissue, contrast and bone, on a 12-bit CT scale
+    private static final float AIR = 0;
+    private static final float FAT = 900;
+    private static final float TISSUE = 1040;
+    private static final float CONTRAST = 1300;
+    private static final float BONE = 2000;
+    private static final float MAX_VALUE = 4095;
+    private static final float NOISE_SIGMA = 25;
+
+    // Gaussian window of the SSIM, as in Wang et al. 2004, and its constants
+    private static final double SSIM_SIGMA = 1.5;
+    private static final int SSIM_RADIUS = 5;
+    private static final double SSIM_K1 = 0.01;
+    private static final double SSIM_K2 = 0.03;
+
+    public enum Phantom {
+        // Spheres of contrast, bone and fat in an ellipsoid body
+        SPHERES,
+        // Step edges at every orientation: a body cut by an oblique plane, with a tilted rod
+        EDGES,
+        // SPHERES with Gaussian noise added
+        NOISY
+    }
+
+    private final int width;
+    private final int height;
+    private final int depth;
+    private final int bitDepth;
+    private int runs = 3;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    // The full-resolution size must be even, so the downsampled stack upsamples back to it
+    public QualityEvaluation(int width, int height, int depth, int bitDepth) {
+        if (width < 2 || height < 2 || depth < 2 || width % 2 != 0 || height % 2 != 0 || depth % 2 != 0) {
+            throw new IllegalArgumentException("The phantom size must be even and at least 2: "
+                    + width + "x" + height + "x" + depth);
+        }
+        UpsamplingEngine.checkBitDepth(bitDepth);
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.bitDepth = bitDepth;
+    }
+
+    // Runs of each kernel; the fastest one is reported
+    public void setRuns(int runs) {
+        if (runs < 1) {
+            throw new IllegalArgumentException("runs must be at least 1: " + runs);
+        }
+        this.runs = runs;
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        QualityEvaluation evaluation;
+        List<String> kernelNames = Arrays.asList("Linear", "Quadratic", "Cubic", "Bilinear", "Bicubic", "Gradient");
+        try {
+            int[] size = {256, 256, 128};
+            int bits = 16;
+            int runs = 3;
+            int threads = -1;
+            for (int i = 0; i < args.length; i += 2) {
+                if (!args[i].startsWith("-") || i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Expected an option and its value: " + args[i]);
+                }
+                if (args[i].equals("-size")) {
+                    String[] dimensions = args[i + 1].split("x");
+                    if (dimensions.length != 3) {
+                        throw new IllegalArgumentException("Expected -size WxHxD: " + args[i + 1]);
+                    }
+                    for (int j = 0; j < 3; j++) {
+                        size[j] = Integer.parseInt(dimensions[j]);
+                    }
+                } else if (args[i].equals("-bits")) {
+                    bits = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("-runs")) {
+                    runs = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("-threads")) {
+                    threads = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("-kernels")) {
+                    kernelNames = Arrays.asList(args[i + 1].split(","));
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            evaluation = new QualityEvaluation(size[0], size[1], size[2], bits);
+            evaluation.setRuns(runs);
+            if (threads != -1) {
+                evaluation.setThreads(threads);
+            }
+            for (String name : kernelNames) {
+                BatchUpsampler.kernel(name);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%-8s %-26s %9s %7s %11s %8s", "Phantom", "Kernel",
+                "PSNR (dB)", "SSIM", "Mvoxels/s", "Peak MB"));
+        for (Phantom phantom : Phantom.values()) {
+            ImageStack truth = evaluation.phantom(phantom);
+            ImageStack input = downsample(truth);
+            for (String name : kernelNames) {
+                System.out.println(evaluation.evaluate(phantom, truth, input, BatchUpsampler.kernel(name)));
+            }
+        }
+        System.exit(0);
+    }
+
+    // One table row: upsamples input with kernel and compares the result with truth
+    String evaluate(Phantom phantom, ImageStack truth, ImageStack input, VoxelKernel kernel) {
+        ImageStack newStack = null;
+        RunMetrics fastest = null;
+        for (int run = 0; run < runs; run++) {
+            UpsamplingEngine engine = new UpsamplingEngine(kernel);
+            engine.setThreads(threads);
+            engine.setProgressListener((done, total) -> { });
+            // The result of the run before is garbage that would count in the peak heap
+            newStack = null;
+            System.gc();
+            newStack = engine.upsample(input);
+            RunMetrics metrics = engine.getLastMetrics();
+            if (fastest == null || metrics.getTotalSeconds() < fastest.getTotalSeconds()) {
+                fastest = metrics;
+            }
+        }
+        return String.format(Locale.ROOT, "%-8s %-26s %9.2f %7.4f %11.1f %8.1f",
+                phantom.name().toLowerCase(Locale.ROOT), kernel.getName(), psnr(truth, newStack),
+                ssim(truth, newStack), fastest.getVoxelsPerSecond() / 1e6, fastest.getPeakHeapBytes() / 1048576.0);
+    }
+
+    // The phantom at full resolution, in the bit depth of the evaluation. Shapes are placed
+    // in coordinates from -1 to 1 along each axis, so they scale with the size.
+    ImageStack phantom(Phantom phantom) {
+        Random random = new Random(1);
+        // Spheres: center x, y, z, radius and value
+        float[][] spheres = {
+            {-0.4f, -0.3f, 0.0f, 0.25f, CONTRAST},
+            {0.35f, -0.25f, 0.2f, 0.15f, BONE},
+            {0.1f, 0.35f, -0.3f, 0.2f, FAT},
+            {-0.2f, 0.3f, 0.45f, 0.08f, BONE},
+            {0.45f, 0.3f, -0.1f, 0.05f, CONTRAST},
+            {-0.05f, -0.05f, -0.5f, 0.12f, FAT},
+        };
+        double[] plane = {1, 2, 3};
+        double norm = Math.sqrt(plane[0] * plane[0] + plane[1] * plane[1] + plane[2] * plane[2]);
+        double[] rod = {0.3, 0.2, 1};
+        double rodNorm = Math.sqrt(rod[0] * rod[0] + rod[1] * rod[1] + rod[2] * rod[2]);
+
+        float scale = (bitDepth == 8) ? 255 / MAX_VALUE : 1;
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            double pz = (z + 0.5) * 2 / depth - 1;
+            float[] values = new float[width * height];
+            for (int y = 0; y < height; y++) {
+                double py = (y + 0.5) * 2 / height - 1;
+                for (int x = 0; x < width; x++) {
+                    double px = (x + 0.5) * 2 / width - 1;
+                    float value = AIR;
+                    double body = (px * px) / 0.81 + (py * py) / 0.5625 + (pz * pz) / 0.81;
+                    if (body <= 1) {
+                        value = TISSUE;
+                        if (phantom == Phantom.EDGES) {
+                            if ((px * plane[0] + py * plane[1] + pz * plane[2]) / norm > 0.1) {
+                                value = CONTRAST;
+                            }
+                            // Distance from the rod's axis, which runs through the center
+                            double along = (px * rod[0] + py * rod[1] + pz * rod[2]) / rodNorm;
+                            double dx = px - along * rod[0] / rodNorm;
+                            double dy = py - along * rod[1] / rodNorm;
+                            double dz = pz - along * rod[2] / rodNorm;
+                            if (dx * dx + dy * dy + dz * dz <= 0.15 * 0.15) {
+                                value = BONE;
+                            }
+                        } else {
+                            for (float[] sphere : spheres) {
+                                double sx = px - sphere[0];
+                                double sy = py - sphere[1];
+                                double sz = pz - sphere[2];
+                                if (sx * sx + sy * sy + sz * sz <= sphere[3] * sphere[3]) {
+                                    value = sphere[4];
+                                }
+                            }
+                        }
+                    }
+                    if (phantom == Phantom.NOISY) {
+                        value += (float) (random.nextGaussian() * NOISE_SIGMA);
+                    }
+                    values[y * width + x] = Math.max(0, Math.min(MAX_VALUE, value)) * scale;
+                }
+            }
+            Object pixels = UpsamplingEngine.newPixels(bitDepth, width * height);
+            PixelRows.writeRounded(values, pixels);
+            stack.addSlice("" + (z + 1), pixels);
+        }
+        return stack;
+    }
+
+    // Every 2x2x2 block of voxels averaged into one, rounded for 8-bit and 16-bit stacks
+    static ImageStack downsample(ImageStack stack) {
+        int width = stack.getWidth();
+        int newWidth = width / 2;
+        int newHeight = stack.getHeight() / 2;
+        float[] row = new float[width];
+        ImageStack newStack = new ImageStack(newWidth, newHeight);
+        for (int newZ = 0; newZ < stack.getSize() / 2; newZ++) {
+            float[] sums = new float[newWidth * newHeight];
+            for (int z = 2 * newZ; z < 2 * newZ + 2; z++) {
+                Object pixels = stack.getPixels(z + 1);
+                for (int y = 0; y < 2 * newHeight; y++) {
+                    PixelRows.readAsFloat(pixels, width, y, row);
+                    int offset = (y / 2) * newWidth;
+                    for (int x = 0; x < 2 * newWidth; x++) {
+                        sums[offset + x / 2] += row[x];
+                    }
+                }
+            }
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] /= 8;
+            }
+            Object newPixels = UpsamplingEngine.newPixels(stack.getBitDepth(), sums.length);
+            PixelRows.writeRounded(sums, newPixels);
+            newStack.addSlice(stack.getSliceLabel(2 * newZ + 1), newPixels);
+        }
+        return newStack;
+    }
+
+    // Peak signal to noise ratio, with the value range of the truth as the peak
+    static double psnr(ImageStack truth, ImageStack result) {
+        double sumOfSquares = 0;
+        float[] truthRow = new float[truth.getWidth()];
+        float[] resultRow = new float[truth.getWidth()];
+        for (int z = 0; z < truth.getSize(); z++) {
+            Object truthPixels = truth.getPixels(z + 1);
+            Object resultPixels = result.getPixels(z + 1);
+            for (int y = 0; y < truth.getHeight(); y++) {
+                PixelRows.readAsFloat(truthPixels, truth.getWidth(), y, truthRow);
+                PixelRows.readAsFloat(resultPixels, truth.getWidth(), y, resultRow);
+                for (int x = 0; x < truthRow.length; x++) {
+                    double difference = truthRow[x] - resultRow[x];
+                    sumOfSquares += difference * difference;
+                }
+            }
+        }
+        double meanSquare = sumOfSquares / ((double) truth.getWidth() * truth.getHeight() * truth.getSize());
+        double range = range(truth);
+        return (meanSquare == 0) ? Double.POSITIVE_INFINITY : 10 * Math.log10(range * range / meanSquare);
+    }
+
+    // Mean structural similarity of the slices (Wang et al. 2004): the SSIM of every voxel
+    // within a Gaussian window in its slice, averaged over the volume. The window reads
+    // past the slice edges as the edge voxel.
+    static double ssim(ImageStack truth, ImageStack result) {
+        int width = truth.getWidth();
+        int height = truth.getHeight();
+        int size = width * height;
+        double range = range(truth);
+        double c1 = (SSIM_K1 * range) * (SSIM_K1 * range);
+        double c2 = (SSIM_K2 * range) * (SSIM_K2 * range);
+        float[] window = new float[2 * SSIM_RADIUS + 1];
+        double windowSum = 0;
+        for (int i = 0; i < window.length; i++) {
+            window[i] = (float) Math.exp(-(i - SSIM_RADIUS) * (i - SSIM_RADIUS) / (2 * SSIM_SIGMA * SSIM_SIGMA));
+            windowSum += window[i];
+        }
+        for (int i = 0; i < window.length; i++) {
+            window[i] /= windowSum;
+        }
+
+        float[] a = new float[size];
+        float[] b = new float[size];
+        float[][] moments = new float[5][size];
+        float[] pass = new float[size];
+        double sum = 0;
+        for (int z = 0; z < truth.getSize(); z++) {
+            for (int y = 0; y < height; y++) {
+                PixelRows.readAsFloat(truth.getPixels(z + 1), width, y, pass);
+                System.arraycopy(pass, 0, a, y * width, width);
+                PixelRows.readAsFloat(result.getPixels(z + 1), width, y, pass);
+                System.arraycopy(pass, 0, b, y * width, width);
+            }
+            for (int i = 0; i < size; i++) {
+                moments[0][i] = a[i];
+                moments[1][i] = b[i];
+                moments[2][i] = a[i] * a[i];
+                moments[3][i] = b[i] * b[i];
+                moments[4][i] = a[i] * b[i];
+            }
+            for (float[] moment : moments) {
+                blur(moment, pass, width, height, window);
+            }
+            for (int i = 0; i < size; i++) {
+                double meanA = moments[0][i];
+                double meanB = moments[1][i];
+                double varianceA = moments[2][i] - meanA * meanA;
+                double varianceB = moments[3][i] - meanB * meanB;
+                double covariance = moments[4][i] - meanA * meanB;
+                sum += (2 * meanA * meanB + c1) * (2 * covariance + c2)
+                        / ((meanA * meanA + meanB * meanB + c1) * (varianceA + varianceB + c2));
+            }
+        }
+        return sum / ((double) size * truth.getSize());
+    }
+
+    // Convolves values with window along x into pass, then along y back into values
+    private static void blur(float[] values, float[] pass, int width, int height, float[] window) {
+        int radius = window.length / 2;
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                for (int j = 0; j < window.length; j++) {
+                    int sourceX = Math.max(0, Math.min(width - 1, x + j - radius));
+                    sum += window[j] * values[offset + sourceX];
+                }
+                pass[offset + x] = sum;
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                for (int j = 0; j < window.length; j++) {
+                    int sourceY = Math.max(0, Math.min(height - 1, y + j - radius));
+                    sum += window[j] * pass[sourceY * width + x];
+                }
+                values[y * width + x] = sum;
+            }
+        }
+    }
+
+    // Highest minus lowest value of the stack, at least 1
+    private static double range(ImageStack stack) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        float[] row = new float[stack.getWidth()];
+        for (int z = 0; z < stack.getSize(); z++) {
+            Object pixels = stack.getPixels(z + 1);
+            for (int y = 0; y < stack.getHeight(); y++) {
+                PixelRows.readAsFloat(pixels, row.length, y, row);
+                for (float value : row) {
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            }
+        }
+        return Math.max(1, max - min);
+    }
+}
@@ -28,26 +28,33 @@ package Resolution_Enhancement;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.WindowManager;
 import ij.plugin.PlugIn;
-import ij.process.ImageProcessor;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import org.scijava.vecmath.Point3f;
-import customnode.CustomPointMesh;
-import ij3d.Content;
-import ij3d.Image3DUniverse;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 
 public class Resolution_Enhancement implements PlugIn {
 
+    private JButton[] kernelButtons;
+    private JButton cancelButton;
+    private JCheckBox progressiveBox;
+    private JProgressBar progressBar;
+
+    // Engine of the job that is running, null when none is
+    private UpsamplingEngine runningEngine;
+
     @Override
     public void run(String arg) {
 
         // Creates frame
         JFrame frame = new JFrame("Resolution Enhancement");
-        frame.setSize(500, 100); //width, height
+        frame.setSize(620, 160); //width, height
         frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         frame.setLayout(new FlowLayout());
 
@@ -55,34 +62,79 @@ public class Resolution_Enhancement implements PlugIn {
         JButton ln_avg = new JButton("Linear Average");			// Linear average
         JButton quad_avg = new JButton("Quadratic Average");	// Quadratic average
         JButton cubic_avg = new JButton("Cubic Average");		// Cubic average
+        JButton trilinear = new JButton("Trilinear");			// Separable trilinear
+        JButton bicubic = new JButton("Bicubic");				// Catmull-Rom
+        JButton gradient = new JButton("Gradient");				// Edge-aware
         JButton help_button = new JButton("Help");
         JButton contact_button = new JButton("Contact");
+        cancelButton = new JButton("Cancel");
+        cancelButton.setEnabled(false);
+        kernelButtons = new JButton[] {ln_avg, quad_avg, cubic_avg, trilinear, bicubic, gradient};
+
+        // Shows a nearest-neighbor preview at once and refines it slice by slice
+        progressiveBox = new JCheckBox("Progressive preview");
+
+        // Shows the progress of the running job
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        progressBar.setString("");
         
         ln_avg.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                // Create an instance of Linear_RE
-                Linear_RE linearRE = new Linear_RE();
-                // Get the ImageProcessor from ImagePlus
-                ImageProcessor ip = imagePlus.getProcessor();
-                // Call the performEnhancement method
-                linearRE.performEnhancement(ip);
-                // Update the ImagePlus with the enhanced ImageProcessor
-                imagePlus.updateAndDraw();
+                // Same enhancement as Linear_RE
+                start(new LinearKernel());
             }
         });
         
         quad_avg.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                IJ.log("Quad pressed");
+                // Same enhancement as Quadratic_RE
+                start(new QuadraticKernel());
             }
         });
         
         cubic_avg.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                IJ.log("Cubic pressed");
+                // Same enhancement as Cubic_RE
+                start(new CubicKernel());
+            }
+        });
+
+        trilinear.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                // Same enhancement as Bilinear_RE
+                start(new BilinearKernel());
+            }
+        });
+
+        bicubic.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                // Same enhancement as Bicubic_RE
+                start(new BicubicKernel());
+            }
+        });
+
+        gradient.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                // Same enhancement as Gradient_RE
+                start(new GradientKernel());
+            }
+        });
+
+        cancelButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (runningEngine != null) {
+                    runningEngine.cancel();
+                    cancelButton.setEnabled(false);
+                    progressBar.setString("Cancelling...");
+                }
             }
         });
 
@@ -104,8 +156,14 @@ public class Resolution_Enhancement implements PlugIn {
         frame.add(ln_avg);
         frame.add(quad_avg);
         frame.add(cubic_avg);
+        frame.add(trilinear);
+        frame.add(bicubic);
+        frame.add(gradient);
         frame.add(help_button);
         frame.add(contact_button);
+        frame.add(progressiveBox);
+        frame.add(progressBar);
+        frame.add(cancelButton);
         
 
         // Make the frame visible
@@ -116,7 +174,93 @@ public class Resolution_Enhancement implements PlugIn {
 	
 	// BEGIN PROGRAMS
 
+    // Enhances the current image with kernel on a background thread, so the frame and
+    // ImageJ stay responsive and the job can be cancelled. Runs on the event thread.
+    private void start(VoxelKernel kernel) {
+        ImagePlus imp = WindowManager.getCurrentImage();
+        if (imp == null) {
+            IJ.noImage();
+            return;
+        }
+        int bitDepth = imp.getBitDepth();
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) {
+            IJ.error("Resolution Enhancement", "Only 8-bit, 16-bit and 32-bit stacks are supported");
+            return;
+        }
+
+        final UpsamplingEngine engine = new UpsamplingEngine(kernel);
+        engine.useImageJThreads();
+        final boolean progressive = progressiveBox.isSelected();
+        runningEngine = engine;
+        setRunning(true);
+
+        // In progressive mode the preview is published as soon as it exists and the
+        // refinement then draws into it, so it is already showing when the job is done
+        SwingWorker<ImagePlus, ImagePlus> worker = new SwingWorker<ImagePlus, ImagePlus>() {
+            @Override
+            protected ImagePlus doInBackground() {
+                // setProgress may be called from the engine's threads, listeners get it on
+                // the event thread
+                engine.setProgressListener((slicesDone, totalSlices) ->
+                        setProgress((slicesDone * 100) / totalSlices));
+                if (!progressive) {
+                    return ResultCache.upsample(engine, imp);
+                }
+                ProgressiveUpsampler upsampler = new ProgressiveUpsampler(engine);
+                ImagePlus preview = upsampler.preview(imp);
+                publish(preview);
+                upsampler.refine();
+                return preview;
+            }
+
+            @Override
+            protected void process(List<ImagePlus> previews) {
+                for (ImagePlus preview : previews) {
+                    preview.show();
+                }
+            }
+
+            @Override
+            protected void done() {
+                runningEngine = null;
+                setRunning(false);
+                try {
+                    ImagePlus newImp = get();
+                    if (!progressive) {
+                        newImp.show();
+                    }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof CancellationException) {
+                        IJ.showStatus("Resolution Enhancement cancelled");
+                    } else {
+                        IJ.handleException(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        worker.addPropertyChangeListener(event -> {
+            if ("progress".equals(event.getPropertyName())) {
+                progressBar.setValue((Integer) event.getNewValue());
+            }
+        });
+        worker.execute();
+    }
+
+    // One job at a time: the enhancement buttons wait while one runs, Cancel only then
+    private void setRunning(boolean running) {
+        for (JButton button : kernelButtons) {
+            button.setEnabled(!running);
+        }
+        progressiveBox.setEnabled(!running);
+        cancelButton.setEnabled(running);
+        progressBar.setValue(0);
+        // null shows the percentage
+        progressBar.setString(running ? null : "");
+    }
+
     public static void main(String[] args) {
-        new RI_UserInterface().run("");
+        new Resolution_Enhancement().run("");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,206 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: A cache of upsampled stacks on disk, so a series that is enhanced again the same
+ way (by another reader, or after ImageJ was restarted) is not computed again. Each
+ result is a raw MappedVolume file named after a SHA-256 of the input voxels (the ROI
+ crop when there is one), the kernel, the edge policy and the new size and region. A
+ repeated run maps that file read-only instead of computing. The least recently used
+ results are deleted when the cache grows past its size limit.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+public class ResultCache {
+
+    // Preference with the size limit of the default cache in MB, 0 turns it off
+    public static final String SIZE_PREF = "resolution_enhancement.cache_mb";
+    public static final int DEFAULT_SIZE_MB = 4096;
+
+    // Part of every key; changing it when a kernel's results change keeps old entries from
+    // being reused
+    private static final String KEY_VERSION = "3";
+    private static final String ENTRY_SUFFIX = ".raw";
+
+    private final File directory;
+    private final long maxBytes;
+
+    public ResultCache(File directory, long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be at least 1: " + maxBytes);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    // The cache the *_RE plugins use, in the ImageJ preferences directory, or null when the
+    // size preference turns it off
+    public static ResultCache getDefault() {
+        long sizeMb = (long) Prefs.get(SIZE_PREF, DEFAULT_SIZE_MB);
+        if (sizeMb <= 0) {
+            return null;
+        }
+        return new ResultCache(new File(Prefs.getPrefsDir(), "Resolution_Enhancement-cache"), sizeMb << 20);
+    }
+
+    // engine.run(imp) through the default cache, or without a cache when it is off
+    public static ImagePlus upsample(UpsamplingEngine engine, ImagePlus imp) {
+        ResultCache cache = getDefault();
+        return (cache == null) ? engine.run(imp) : cache.run(engine, imp);
+    }
+
+    // Returns the result of engine.run(imp): mapped from the cache when the same voxels
+    // were upsampled the same way before, otherwise computed and then stored. A cache that
+    // cannot be read or written is logged and skipped.
+    public ImagePlus run(UpsamplingEngine engine, ImagePlus imp) {
+        UpsamplingEngine.Plan plan = engine.plan(imp);
+        File entry = new File(directory, key(engine, plan) + ENTRY_SUFFIX);
+        long size = (long) plan.x.newSize * plan.y.newSize * plan.z.newSize * (plan.bitDepth / 8);
+
+        if (entry.length() == size) {
+            try {
+                MappedVolume volume = MappedVolume.open(entry, plan.x.newSize, plan.y.newSize, plan.z.newSize,
+                        plan.bitDepth);
+                volume.close();
+                entry.setLastModified(System.currentTimeMillis());
+                IJ.log("Resolution Enhancement: using cached result " + entry.getName());
+                return engine.newImage(imp, volume.getStack(), plan);
+            } catch (IOException e) {
+                IJ.log("Resolution Enhancement: cannot read cached result " + entry + ": " + e.getMessage());
+            }
+        }
+
+        ImagePlus newImp = engine.run(imp, plan);
+        if (size <= maxBytes) {
+            try {
+                store(newImp.getStack(), entry);
+                evict(entry);
+            } catch (IOException e) {
+                IJ.log("Resolution Enhancement: cannot cache result in " + directory + ": " + e.getMessage());
+            }
+        }
+        return newImp;
+    }
+
+    // Writes newStack to a temporary file first and then renames it, so a run that fails
+    // or a second ImageJ storing the same result never leaves a partial entry
+    private void store(ImageStack newStack, File entry) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create the directory");
+        }
+        File partial = File.createTempFile(entry.getName(), ".part", directory);
+        try {
+            MappedVolume volume = MappedVolume.create(partial, newStack.getWidth(), newStack.getHeight(),
+                    newStack.getSize(), newStack.getBitDepth());
+            try {
+                for (int z = 0; z < newStack.getSize(); z++) {
+                    volume.putSlice(z, newStack.getPixels(z + 1));
+                }
+            } finally {
+                volume.close();
+            }
+            try {
+                Files.move(partial.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partial.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(partial.toPath());
+        }
+    }
+
+    // Deletes the least recently used entries until the cache fits in its size limit. keep,
+    // the entry just stored, always stays. Images mapped from a deleted entry keep working
+    // until they are closed.
+    private void evict(File keep) {
+        File[] entries = directory.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX));
+        if (entries == null) {
+            return;
+        }
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified).reversed());
+        long total = keep.length();
+        for (File entry : entries) {
+            if (entry.equals(keep)) {
+                continue;
+            }
+            long length = entry.length();
+            total += length;
+            if (total > maxBytes && entry.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    // Hex SHA-256 of everything the new voxels depend on, the input voxels themselves
+    // included, so two inputs only share an entry when their voxels are the same
+    static String key(UpsamplingEngine engine, UpsamplingEngine.Plan plan) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        VoxelKernel kernel = engine.getKernel();
+        String parameters = KEY_VERSION + "|" + kernel.getClass().getName() + "|" + kernel.getName() + "|"
+                + engine.getEdgePolicy() + "|" + plan.bitDepth + "|" + axis(plan.x) + "|" + axis(plan.y) + "|"
+                + axis(plan.z);
+        digest.update(parameters.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer slice = ByteBuffer.allocate(plan.x.size * plan.y.size * (plan.bitDepth / 8));
+        for (int z = 0; z < plan.z.size; z++) {
+            Object pixels = plan.input.getPixels(z + 1);
+            if (pixels instanceof byte[]) {
+                digest.update((byte[]) pixels);
+                continue;
+            }
+            slice.clear();
+            if (pixels instanceof short[]) {
+                slice.asShortBuffer().put((short[]) pixels);
+            } else {
+                slice.asFloatBuffer().put((float[]) pixels);
+            }
+            digest.update(slice.array());
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private static String axis(AxisMapping mapping) {
+        return mapping.size + "," + mapping.newSize + "," + mapping.first + "," + mapping.newFirst;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+ PURPOSE: A NeighborKernel that can also combine a whole row of new voxels at once. The
+ UpsamplingEngine gathers the neighbors of every new voxel in a row into one array per
+ neighbor and hands them over together, so the kernel can run a tight loop, or SIMD
+ lanes (see VectorRows), instead of one call per voxel.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+public interface RowKernel extends NeighborKernel {
+
+    // newRow[i] = combine of neighborRows[0][i], neighborRows[1][i], ... for i < length
+    void combineRows(int[][] neighborRows, int[] newRow, int length);
+
+    // Same as above for 32-bit stacks
+    void combineRows(float[][] neighborRows, float[] newRow, int length);
+}
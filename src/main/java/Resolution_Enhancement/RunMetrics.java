@@ -0,0 +1,180 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+ PURPOSE: What one upsampling run cost: wall time per phase, new voxels per second and
+ the peak heap in use. Workers only touch it once per slice (the progress count and a
+ heap sample) and once per slab (the voxel count, through a LongAdder), so it costs
+ nothing measurable. UpsamplingEngine.getLastMetrics() returns it after each run, and
+ toJson() gives the one-line summary the engine writes to the log.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class RunMetrics {
+
+    public enum Phase {
+        // Allocating the new stack, output file or slice buffers
+        ALLOCATION,
+        // Computing the new voxels (for a mapped output, including the copy into it)
+        COMPUTE,
+        // Writing the new slices to disk, or building the new image
+        OUTPUT
+    }
+
+    private final String kernelName;
+    private final int bitDepth;
+    private final int threads;
+    private final int[] inputSize;
+    private final int[] outputSize;
+
+    private final long startTime = System.nanoTime();
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+    private final AtomicInteger slicesDone = new AtomicInteger();
+    private final LongAdder voxels = new LongAdder();
+    private final AtomicLong peakHeapBytes = new AtomicLong();
+    private volatile long totalNanos = -1;
+
+    // Slices the run computes, for the progress; all new slices unless set otherwise
+    private int totalSlices;
+
+    RunMetrics(String kernelName, int bitDepth, int threads, int[] inputSize, int[] outputSize) {
+        this.kernelName = kernelName;
+        this.bitDepth = bitDepth;
+        this.threads = threads;
+        this.inputSize = inputSize.clone();
+        this.outputSize = outputSize.clone();
+        totalSlices = outputSize[2];
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new LongAdder();
+        }
+        sampleHeap();
+    }
+
+    // Time spent in phase since start, a System.nanoTime() value
+    void addTime(Phase phase, long start) {
+        phaseNanos[phase.ordinal()].add(System.nanoTime() - start);
+    }
+
+    // Set before the workers start, e.g. when only some of the new slices are recomputed
+    void setTotalSlices(int totalSlices) {
+        this.totalSlices = totalSlices;
+    }
+
+    int getTotalSlices() {
+        return totalSlices;
+    }
+
+    // Called by a worker after each new slice, returns the number of slices done so far
+    int sliceDone() {
+        sampleHeap();
+        return slicesDone.incrementAndGet();
+    }
+
+    // Called by a worker when it has finished a slab
+    void slabDone(long slabVoxels) {
+        voxels.add(slabVoxels);
+    }
+
+    void finish() {
+        sampleHeap();
+        totalNanos = System.nanoTime() - startTime;
+    }
+
+    private void sampleHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        peakHeapBytes.accumulateAndGet(used, Math::max);
+    }
+
+    public String getKernelName() {
+        return kernelName;
+    }
+
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    // width, height and depth
+    public int[] getInputSize() {
+        return inputSize.clone();
+    }
+
+    public int[] getOutputSize() {
+        return outputSize.clone();
+    }
+
+    public int getSlices() {
+        return slicesDone.get();
+    }
+
+    public long getVoxels() {
+        return voxels.sum();
+    }
+
+    public double getSeconds(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum() / 1e9;
+    }
+
+    // Wall time from the start of the run to its end, including what no phase covers
+    public double getTotalSeconds() {
+        return totalNanos / 1e9;
+    }
+
+    // New voxels per second of the whole run
+    public double getVoxelsPerSecond() {
+        return getVoxels() / getTotalSeconds();
+    }
+
+    // New voxels per second of the compute phase alone
+    public double getComputeVoxelsPerSecond() {
+        return getVoxels() / getSeconds(Phase.COMPUTE);
+    }
+
+    // Highest heap use seen at the start, after each slice and at the end. Other work in
+    // the same JVM counts too.
+    public long getPeakHeapBytes() {
+        return peakHeapBytes.get();
+    }
+
+    public String toJson() {
+        return String.format(Locale.ROOT, "{\"kernel\":\"%s\",\"bitDepth\":%d,\"threads\":%d,"
+                + "\"input\":[%d,%d,%d],\"output\":[%d,%d,%d],\"slices\":%d,\"voxels\":%d,"
+                + "\"allocationSeconds\":%.6f,\"computeSeconds\":%.6f,\"outputSeconds\":%.6f,"
+                + "\"totalSeconds\":%.6f,\"voxelsPerSecond\":%.0f,\"computeVoxelsPerSecond\":%.0f,"
+                + "\"peakHeapBytes\":%d}",
+                kernelName.replace("\\", "\\\\").replace("\"", "\\\""), bitDepth, threads,
+                inputSize[0], inputSize[1], inputSize[2], outputSize[0], outputSize[1], outputSize[2],
+                getSlices(), getVoxels(), getSeconds(Phase.ALLOCATION), getSeconds(Phase.COMPUTE),
+                getSeconds(Phase.OUTPUT), getTotalSeconds(), getVoxelsPerSecond(), getComputeVoxelsPerSecond(),
+                getPeakHeapBytes());
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
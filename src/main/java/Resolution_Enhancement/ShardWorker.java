@@ -0,0 +1,106 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: The worker JVM of a ShardedUpsampler run, started by the coordinator with:
+
+   ShardWorker <input> <width> <height> <depth> <bitDepth> <kernel> <scaleX> <scaleY> <scaleZ>
+        <edge policy> <first slice> <last slice> <bounds x,y,w,h or -> <threads> <output>
+
+ The input is the whole volume as a raw MappedVolume file. The worker maps it read-only and
+ upsamples slices first to last with the engine's slice range, so it only reads its shard
+ plus the halo slices next to it. The new slices of the shard go to a raw MappedVolume
+ output file. It exits with 0 when the output is complete, 1 when the run failed and 2
+ for wrong arguments.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import ij.ImageStack;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+
+public final class ShardWorker {
+
+    private ShardWorker() {
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        File input;
+        int width;
+        int height;
+        int depth;
+        int bitDepth;
+        File output;
+        UpsamplingEngine engine;
+        try {
+            if (args.length != 15) {
+                throw new IllegalArgumentException("Expected 15 arguments, got " + args.length);
+            }
+            input = new File(args[0]);
+            width = Integer.parseInt(args[1]);
+            height = Integer.parseInt(args[2]);
+            depth = Integer.parseInt(args[3]);
+            bitDepth = Integer.parseInt(args[4]);
+            engine = new UpsamplingEngine(BatchUpsampler.kernel(args[5]));
+            engine.setScale(Double.parseDouble(args[6]), Double.parseDouble(args[7]), Double.parseDouble(args[8]));
+            engine.setEdgePolicy(EdgePolicy.valueOf(args[9]));
+            engine.setSliceRange(Integer.parseInt(args[10]), Integer.parseInt(args[11]));
+            if (!args[12].equals("-")) {
+                String[] bounds = args[12].split(",");
+                engine.setBounds(new Rectangle(Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1]),
+                        Integer.parseInt(bounds[2]), Integer.parseInt(bounds[3])));
+            }
+            engine.setThreads(Integer.parseInt(args[13]));
+            output = new File(args[14]);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("ShardWorker: " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        try {
+            upsample(engine, input, width, height, depth, bitDepth, output);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("ShardWorker: " + e);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void upsample(UpsamplingEngine engine, File input, int width, int height, int depth,
+            int bitDepth, File output) throws IOException {
+        MappedVolume volume = MappedVolume.open(input, width, height, depth, bitDepth);
+        volume.close();
+        ImageStack stack = volume.getStack();
+        UpsamplingEngine.Plan plan = engine.plan(stack);
+
+        MappedVolume newVolume = MappedVolume.create(output, plan.x.newSize, plan.y.newSize, plan.z.newSize,
+                bitDepth);
+        try {
+            engine.upsample(plan, newVolume);
+        } finally {
+            newVolume.close();
+        }
+        RunMetrics metrics = engine.getLastMetrics();
+        System.out.println("ShardWorker: " + metrics.toJson());
+    }
+}
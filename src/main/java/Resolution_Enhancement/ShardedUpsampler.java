@@ -0,0 +1,415 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Upsamples a volume in several worker JVMs, for studies whose result is too big
+ for one. The coordinator writes the input once to a raw file in a work directory and
+ splits its slices into z-ranges (shards). Each shard runs in a ShardWorker process that
+ reads its slices plus the halo slices next to them and writes its new slices to a file
+ of its own; a shard that fails is started again, up to the number of retries. The new
+ slices are then stitched in order into one TIFF or raw output, one slice at a time.
+
+   java -cp ij.jar:Resolution_Enhancement.jar Resolution_Enhancement.ShardedUpsampler
+        [-shards N] [-workers N] [-retries N] [-scale S] [-heap SIZE] <input> <kernel> <output>
+
+ The input is a TIFF file or a directory (a DICOM series or image sequence), the kernel
+ is a plugin name as for BatchUpsampler, and a .raw output is written as raw data, any
+ other as TIFF. Workers are started with the java command of the coordinator; the
+ launcher can be replaced, e.g. to start them on other hosts sharing the work directory.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.FolderOpener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ShardedUpsampler {
+
+    private static final String USAGE = "Usage: ShardedUpsampler [-shards N] [-workers N] [-retries N] [-scale S]"
+            + " [-heap SIZE] <input> <kernel> <output>";
+
+    private final String kernelName;
+    private double scaleX = 2;
+    private double scaleY = 2;
+    private double scaleZ = 2;
+    private EdgePolicy edgePolicy = EdgePolicy.CLAMP;
+    private int shards = Runtime.getRuntime().availableProcessors();
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int threadsPerWorker = 1;
+    private int retries = 2;
+    private List<String> launcher = Arrays.asList(
+            new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+    private List<String> jvmOptions = new ArrayList<>();
+    private File workDirectory = new File(System.getProperty("java.io.tmpdir"));
+    private volatile ProgressListener progressListener;
+    private volatile boolean cancelled;
+    private final Set<Process> running = ConcurrentHashMap.newKeySet();
+
+    public ShardedUpsampler(String kernelName) {
+        BatchUpsampler.kernel(kernelName);
+        this.kernelName = kernelName;
+    }
+
+    public void setScale(double scaleX, double scaleY, double scaleZ) {
+        if (!(scaleX >= 1 && scaleY >= 1 && scaleZ >= 1)) {
+            throw new IllegalArgumentException("Scale factors must be at least 1");
+        }
+        this.scaleX = scaleX;
+        this.scaleY = scaleY;
+        this.scaleZ = scaleZ;
+    }
+
+    public void setScale(double scale) {
+        setScale(scale, scale, scale);
+    }
+
+    public void setEdgePolicy(EdgePolicy edgePolicy) {
+        this.edgePolicy = edgePolicy;
+    }
+
+    // Number of z-ranges the slices are split into, at most one per slice. More shards than
+    // workers keep every worker busy when shards take different times and make a retry cheaper.
+    public void setShards(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be at least 1: " + shards);
+        }
+        this.shards = shards;
+    }
+
+    // Number of worker processes running at once, and the threads of each
+    public void setWorkers(int workers, int threadsPerWorker) {
+        if (workers < 1 || threadsPerWorker < 1) {
+            throw new IllegalArgumentException("Workers and threads must be at least 1");
+        }
+        this.workers = workers;
+        this.threadsPerWorker = threadsPerWorker;
+    }
+
+    // Times a failed shard is started again before the run fails
+    public void setRetries(int retries) {
+        if (retries < 0) {
+            throw new IllegalArgumentException("retries must not be negative: " + retries);
+        }
+        this.retries = retries;
+    }
+
+    // Command that starts a JVM, followed by the options and class of the worker. Defaults
+    // to the java of this JVM; e.g. "ssh", "host", "java" starts workers on another host,
+    // which then needs the same class path and work directory.
+    public void setLauncher(List<String> launcher) {
+        if (launcher.isEmpty()) {
+            throw new IllegalArgumentException("The launcher needs a command");
+        }
+        this.launcher = new ArrayList<>(launcher);
+    }
+
+    // JVM options of every worker, e.g. -Xmx8g
+    public void setJvmOptions(List<String> jvmOptions) {
+        this.jvmOptions = new ArrayList<>(jvmOptions);
+    }
+
+    // Directory for the input, the new slices of each shard and the worker logs while the
+    // run lasts; it needs room for the input and the whole result
+    public void setWorkDirectory(File workDirectory) {
+        this.workDirectory = workDirectory;
+    }
+
+    // Receives the new slices of the finished shards, from the coordinator's threads
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    // Stops the workers; upsample() then throws CancellationException
+    public void cancel() {
+        cancelled = true;
+        for (Process process : running) {
+            process.destroyForcibly();
+        }
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        ShardedUpsampler sharded;
+        File input;
+        File output;
+        try {
+            int i = 0;
+            List<String> options = new ArrayList<>();
+            for (; i < args.length && args[i].startsWith("-"); i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                options.add(args[i]);
+                options.add(args[i + 1]);
+            }
+            if (args.length - i != 3) {
+                throw new IllegalArgumentException("Expected an input, a kernel and an output");
+            }
+            sharded = new ShardedUpsampler(args[i + 1]);
+            for (int j = 0; j < options.size(); j += 2) {
+                String value = options.get(j + 1);
+                switch (options.get(j)) {
+                    case "-shards":
+                        sharded.setShards(Integer.parseInt(value));
+                        break;
+                    case "-workers":
+                        sharded.setWorkers(Integer.parseInt(value), 1);
+                        break;
+                    case "-retries":
+                        sharded.setRetries(Integer.parseInt(value));
+                        break;
+                    case "-scale":
+                        sharded.setScale(Double.parseDouble(value));
+                        break;
+                    case "-heap":
+                        sharded.setJvmOptions(Arrays.asList("-Xmx" + value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + options.get(j));
+                }
+            }
+            input = new File(args[i]);
+            output = new File(args[i + 2]);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        try {
+            ImagePlus imp = input.isDirectory() ? FolderOpener.open(input.getPath()) : IJ.openImage(input.getPath());
+            if (imp == null) {
+                throw new IOException("Cannot open " + input);
+            }
+            boolean raw = output.getName().toLowerCase(Locale.ROOT).endsWith(".raw");
+            sharded.upsample(imp, output, raw ? StackFileWriter.Format.RAW : StackFileWriter.Format.TIFF);
+        } catch (IOException | RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    // Upsamples the stack of imp, within its area ROI, into output in the given format. A
+    // TIFF output keeps the calibration with the new voxel size. Throws IOException when a
+    // shard still fails after its retries; the worker logs are then kept in the work directory.
+    public void upsample(ImagePlus imp, File output, StackFileWriter.Format format) throws IOException {
+        long startTime = System.nanoTime();
+        cancelled = false;
+        UpsamplingEngine engine = newEngine();
+        UpsamplingEngine.Plan plan = engine.plan(imp);
+        ImageStack stack = imp.getStack();
+        int depth = stack.getSize();
+        int shardCount = Math.min(shards, depth);
+
+        File directory = Files.createTempDirectory(workDirectory.toPath(), "Resolution_Enhancement-shards").toFile();
+        File inputFile = new File(directory, "input.raw");
+        boolean failed = true;
+        try {
+            MappedVolume volume = MappedVolume.create(inputFile, stack.getWidth(), stack.getHeight(), depth,
+                    stack.getBitDepth());
+            try {
+                for (int z = 0; z < depth; z++) {
+                    volume.putSlice(z, stack.getPixels(z + 1));
+                }
+            } finally {
+                volume.close();
+            }
+
+            // Shard i covers input slices first[i] to first[i + 1] - 1 (1-based). Its new
+            // slices are the ones that lie in them, so the shards cover every new slice once.
+            int[] first = new int[shardCount + 1];
+            int[] newDepths = new int[shardCount];
+            AxisMapping mapZ = new AxisMapping(depth, scaleZ);
+            for (int i = 0; i <= shardCount; i++) {
+                first[i] = (int) ((long) i * depth / shardCount) + 1;
+            }
+            for (int i = 0; i < shardCount; i++) {
+                newDepths[i] = new AxisMapping(mapZ, first[i] - 1, first[i + 1] - 1, 0).newSize;
+            }
+
+            runShards(imp, directory, inputFile, first, newDepths, plan);
+            stitch(imp, plan, directory, newDepths, output, format);
+            failed = false;
+        } finally {
+            deleteWorkFiles(directory, failed);
+        }
+        IJ.log("Sharded run: " + shardCount + " shards, "
+                + Math.round((System.nanoTime() - startTime) / 1e6) / 1000.0 + " seconds");
+    }
+
+    private UpsamplingEngine newEngine() {
+        UpsamplingEngine engine = new UpsamplingEngine(BatchUpsampler.kernel(kernelName));
+        engine.setScale(scaleX, scaleY, scaleZ);
+        engine.setEdgePolicy(edgePolicy);
+        return engine;
+    }
+
+    // Runs the shards on a pool of threads, each waiting on the worker process of one shard
+    private void runShards(ImagePlus imp, File directory, File inputFile, int[] first, int[] newDepths,
+            UpsamplingEngine.Plan plan) throws IOException {
+        ImageStack stack = imp.getStack();
+        String bounds = "-";
+        if (imp.getRoi() != null && imp.getRoi().isArea()) {
+            java.awt.Rectangle roi = imp.getRoi().getBounds();
+            bounds = roi.x + "," + roi.y + "," + roi.width + "," + roi.height;
+        }
+        long newSliceBytes = (long) plan.x.newSize * plan.y.newSize * (plan.bitDepth / 8);
+        int totalNewSlices = plan.z.newSize;
+        AtomicInteger newSlicesDone = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(workers, newDepths.length));
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < newDepths.length; i++) {
+                int shard = i;
+                List<String> command = new ArrayList<>(launcher);
+                command.addAll(jvmOptions);
+                // Workers use the SIMD row loops when this JVM does; without the module
+                // they run the scalar loops, which give the same voxels
+                if (VectorSupport.ENABLED) {
+                    command.add("--add-modules");
+                    command.add("jdk.incubator.vector");
+                }
+                command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+                        ShardWorker.class.getName(), inputFile.getPath(), "" + stack.getWidth(),
+                        "" + stack.getHeight(), "" + stack.getSize(), "" + stack.getBitDepth(), kernelName,
+                        "" + scaleX, "" + scaleY, "" + scaleZ, edgePolicy.name(), "" + first[i],
+                        "" + (first[i + 1] - 1), bounds, "" + threadsPerWorker,
+                        shardFile(directory, i).getPath()));
+                results.add(pool.submit(() -> {
+                    runShard(shard, command, directory, newDepths[shard] * newSliceBytes);
+                    ProgressListener listener = progressListener;
+                    int done = newSlicesDone.addAndGet(newDepths[shard]);
+                    if (listener != null) {
+                        listener.progress(done, totalNewSlices);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            cancel();
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Sharded run was interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Starts the worker of one shard until its output is complete, at most retries + 1 times
+    private void runShard(int shard, List<String> command, File directory, long outputBytes) throws IOException {
+        File log = new File(directory, "shard" + shard + ".log");
+        for (int attempt = 0; ; attempt++) {
+            if (cancelled) {
+                throw new CancellationException("Sharded run was cancelled");
+            }
+            Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.appendTo(log)).start();
+            running.add(process);
+            int exitCode;
+            try {
+                exitCode = process.waitFor();
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Sharded run was interrupted");
+            } finally {
+                running.remove(process);
+            }
+            if (cancelled) {
+                throw new CancellationException("Sharded run was cancelled");
+            }
+            if (exitCode == 0 && shardFile(directory, shard).length() == outputBytes) {
+                return;
+            }
+            if (attempt == retries) {
+                throw new IOException("Shard " + shard + " failed on all " + (attempt + 1) + " attempts (exit code "
+                        + exitCode + "), see " + log);
+            }
+            IJ.log("Shard " + shard + " failed (exit code " + exitCode + "), starting it again");
+        }
+    }
+
+    // Appends the new slices of every shard, in order, to output
+    private void stitch(ImagePlus imp, UpsamplingEngine.Plan plan, File directory, int[] newDepths, File output,
+            StackFileWriter.Format format) throws IOException {
+        try (StackFileWriter writer = new StackFileWriter(output, format, plan.x.newSize, plan.y.newSize,
+                plan.bitDepth)) {
+            writer.setCalibration(UpsamplingEngine.newCalibration(imp, plan));
+            for (int i = 0; i < newDepths.length; i++) {
+                MappedVolume volume = MappedVolume.open(shardFile(directory, i), plan.x.newSize, plan.y.newSize,
+                        newDepths[i], plan.bitDepth);
+                try {
+                    for (int z = 0; z < newDepths[i]; z++) {
+                        writer.writeSlice(volume.getSlice(z));
+                    }
+                } finally {
+                    volume.close();
+                }
+            }
+        }
+    }
+
+    private static File shardFile(File directory, int shard) {
+        return new File(directory, "shard" + shard + ".raw");
+    }
+
+    // Deletes the work directory, but keeps the worker logs of a failed run
+    private static void deleteWorkFiles(File directory, boolean keepLogs) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!(keepLogs && file.getName().endsWith(".log"))) {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+}
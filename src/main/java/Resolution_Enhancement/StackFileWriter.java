@@ -0,0 +1,239 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Writes a stack to disk one slice at a time, either as a multi-page TIFF that
+ ImageJ opens as a stack or as headerless raw data, without ever holding more than
+ the current slice in memory. Pixels are written big-endian, like ImageJ does.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import ij.measure.Calibration;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+public class StackFileWriter implements Closeable {
+
+    public enum Format {
+        TIFF,
+        RAW
+    }
+
+    // TIFF offsets are 32-bit
+    private static final long MAX_TIFF_SIZE = 0xffffffffL;
+    private static final int TIFF_HEADER_SIZE = 8;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Format format;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final ByteBuffer sliceBuffer;
+    private Calibration calibration;
+    private int slices;
+
+    public StackFileWriter(File output, Format format, int width, int height, int bitDepth) throws IOException {
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) {
+            throw new IllegalArgumentException("Only 8-bit, 16-bit and 32-bit stacks are supported");
+        }
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        sliceBuffer = ByteBuffer.allocate(width * height * (bitDepth / 8)).order(ByteOrder.BIG_ENDIAN);
+
+        file = new RandomAccessFile(output, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        if (format == Format.TIFF) {
+            // Byte order, magic number and the offset of the first IFD, which close() fills in
+            ByteBuffer header = ByteBuffer.allocate(TIFF_HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+            header.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(0);
+            header.flip();
+            writeFully(header);
+        }
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    // Voxel size, units, origin (where a region or slice range lies in the whole upsampled
+    // volume) and value calibration (e.g. the rescale function of CT numbers) stored in
+    // the TIFF, the same way ImageJ saves them. Ignored for RAW output.
+    public void setCalibration(Calibration calibration) {
+        this.calibration = calibration;
+    }
+
+    // Appends one slice; pixels is the byte[], short[] or float[] of an ImageJ slice
+    public void writeSlice(Object pixels) throws IOException {
+        if (format == Format.TIFF && channel.position() + sliceBuffer.capacity() > MAX_TIFF_SIZE) {
+            throw new IOException("TIFF output is limited to 4 GB, use the RAW format for larger stacks");
+        }
+        sliceBuffer.clear();
+        if (pixels instanceof byte[]) {
+            sliceBuffer.put((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            sliceBuffer.asShortBuffer().put((short[]) pixels);
+        } else {
+            sliceBuffer.asFloatBuffer().put((float[]) pixels);
+        }
+        sliceBuffer.position(0).limit(sliceBuffer.capacity());
+        writeFully(sliceBuffer);
+        slices++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (format == Format.TIFF && slices > 0) {
+                writeDirectories();
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    // Writes one IFD per slice after the pixel data. The slices are contiguous, and the
+    // ImageJ description in the first IFD lets ImageJ open them without reading every IFD.
+    private void writeDirectories() throws IOException {
+        int bytesPerSlice = sliceBuffer.capacity();
+        boolean scaled = (calibration != null) && calibration.scaled();
+        String text = "ImageJ=1.46r\nimages=" + slices + "\nslices=" + slices + calibrationText() + "\nloop=false\n\0";
+        if (text.length() % 2 != 0) {
+            text += "\0";
+        }
+        byte[] description = text.getBytes(StandardCharsets.US_ASCII);
+
+        // IFDs start on a word boundary
+        if (channel.position() % 2 != 0) {
+            writeFully(ByteBuffer.allocate(1));
+        }
+        long ifdStart = channel.position();
+        // The first IFD also has the description and, for scaled images, the x and y
+        // resolution, whose two RATIONAL values follow the description
+        int entries = 10;
+        int firstEntries = scaled ? 13 : 11;
+        int ifdSize = 2 + entries * 12 + 4;
+        int firstIfdSize = 2 + firstEntries * 12 + 4;
+        int resolutionSize = scaled ? 16 : 0;
+        long descriptionOffset = ifdStart + firstIfdSize;
+        long resolutionOffset = descriptionOffset + description.length;
+        long nextIfd = resolutionOffset + resolutionSize;
+        if (nextIfd + (long) (slices - 1) * ifdSize > MAX_TIFF_SIZE) {
+            throw new IOException("TIFF output is limited to 4 GB, use the RAW format for larger stacks");
+        }
+
+        ByteBuffer ifds = ByteBuffer.allocate(firstIfdSize + description.length + resolutionSize
+                + (slices - 1) * ifdSize).order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < slices; i++) {
+            boolean first = (i == 0);
+            long stripOffset = TIFF_HEADER_SIZE + (long) i * bytesPerSlice;
+            long ifdEnd = first ? nextIfd : ifdStart + ifds.position() + ifdSize;
+
+            ifds.putShort((short) (first ? firstEntries : entries));
+            putEntry(ifds, 254, 4, 1, 0);
+            putEntry(ifds, 256, 4, 1, width);
+            putEntry(ifds, 257, 4, 1, height);
+            putEntry(ifds, 258, 3, 1, bitDepth);
+            putEntry(ifds, 262, 3, 1, 1);
+            if (first) {
+                putEntry(ifds, 270, 2, description.length, descriptionOffset);
+            }
+            putEntry(ifds, 273, 4, 1, stripOffset);
+            putEntry(ifds, 277, 3, 1, 1);
+            putEntry(ifds, 278, 4, 1, height);
+            putEntry(ifds, 279, 4, 1, bytesPerSlice);
+            if (first && scaled) {
+                putEntry(ifds, 282, 5, 1, resolutionOffset);
+                putEntry(ifds, 283, 5, 1, resolutionOffset + 8);
+            }
+            putEntry(ifds, 339, 3, 1, (bitDepth == 32) ? 3 : 1);
+            ifds.putInt((i < slices - 1) ? (int) ifdEnd : 0);
+            if (first) {
+                ifds.put(description);
+                if (scaled) {
+                    // Pixels per unit, as ImageJ writes them
+                    ifds.putInt((int) (1000000 / calibration.pixelWidth)).putInt(1000000);
+                    ifds.putInt((int) (1000000 / calibration.pixelHeight)).putInt(1000000);
+                }
+            }
+        }
+        ifds.flip();
+        writeFully(ifds);
+
+        ByteBuffer firstIfd = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
+        firstIfd.putInt((int) ifdStart).flip();
+        channel.write(firstIfd, 4);
+    }
+
+    // Calibration keys of the ImageJ description, each starting with a newline
+    private String calibrationText() {
+        if (calibration == null) {
+            return "";
+        }
+        StringBuilder text = new StringBuilder();
+        if (calibration.scaled()) {
+            text.append("\nunit=").append(calibration.getUnit());
+            text.append("\nspacing=").append(calibration.pixelDepth);
+        }
+        // In voxels, written only when not 0 like ImageJ does
+        if (calibration.xOrigin != 0) {
+            text.append("\nxorigin=").append(calibration.xOrigin);
+        }
+        if (calibration.yOrigin != 0) {
+            text.append("\nyorigin=").append(calibration.yOrigin);
+        }
+        if (calibration.zOrigin != 0) {
+            text.append("\nzorigin=").append(calibration.zOrigin);
+        }
+        if (calibration.calibrated()) {
+            double[] coefficients = calibration.getCoefficients();
+            text.append("\ncf=").append(calibration.getFunction());
+            for (int i = 0; i < coefficients.length; i++) {
+                text.append("\nc").append(i).append('=').append(coefficients[i]);
+            }
+            text.append("\nvunit=").append(calibration.getValueUnit());
+        }
+        return text.toString();
+    }
+
+    // SHORT values sit in the first two bytes of the value field
+    private static void putEntry(ByteBuffer ifd, int tag, int type, int count, long value) {
+        ifd.putShort((short) tag).putShort((short) type).putInt(count);
+        if (type == 3) {
+            ifd.putShort((short) value).putShort((short) 0);
+        } else {
+            ifd.putInt((int) value);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
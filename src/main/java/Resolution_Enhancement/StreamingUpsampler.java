@@ -0,0 +1,117 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Out-of-core mode of the UpsamplingEngine. Input slices are read in order and
+ only the previous, current and next slice are kept in memory; every finished new
+ slice is appended to a multi-page TIFF or raw file right away. Give it a virtual
+ stack (e.g. File > Import > TIFF Virtual Stack) and peak memory stays about the same
+ no matter how deep the stack is.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.io.File;
+import java.io.IOException;
+import java.util.function.IntFunction;
+
+public class StreamingUpsampler {
+
+    private final UpsamplingEngine engine;
+
+    public StreamingUpsampler(UpsamplingEngine engine) {
+        this.engine = engine;
+    }
+
+    // Upsamples stack and writes the new slices to output in the given format
+    public void upsample(ImageStack stack, File output, StackFileWriter.Format format) throws IOException {
+        upsample(stack, null, output, format);
+    }
+
+    // Same as above for the stack of imp, within its area ROI unless the engine has bounds,
+    // and a TIFF output keeps its calibration with the new voxel size
+    public void upsample(ImagePlus imp, File output, StackFileWriter.Format format) throws IOException {
+        upsample(imp.getStack(), imp, output, format);
+    }
+
+    private void upsample(ImageStack stack, ImagePlus imp, File output, StackFileWriter.Format format)
+            throws IOException {
+        UpsamplingEngine.Plan plan = (imp != null) ? engine.plan(imp) : engine.plan(stack);
+        RunMetrics metrics = engine.newMetrics(plan, 1);
+        int newWidth = plan.x.newSize;
+        int newHeight = plan.y.newSize;
+        int newDepth = plan.z.newSize;
+
+        long allocationStart = System.nanoTime();
+        SliceWindow window = new SliceWindow(plan.input);
+        UpsamplingEngine.Scratch scratch = new UpsamplingEngine.Scratch(plan);
+        Object newPixels = UpsamplingEngine.newPixels(plan.bitDepth, newWidth * newHeight);
+        StackFileWriter writer = new StackFileWriter(output, format, newWidth, newHeight, plan.bitDepth);
+        metrics.addTime(RunMetrics.Phase.ALLOCATION, allocationStart);
+
+        try {
+            if (imp != null) {
+                writer.setCalibration(UpsamplingEngine.newCalibration(imp, plan));
+            }
+            for (int newZ = 0; newZ < newDepth; newZ++) {
+                engine.checkCancelled();
+                long computeStart = System.nanoTime();
+                engine.upsampleSlice(window, newZ, newPixels, scratch);
+                metrics.addTime(RunMetrics.Phase.COMPUTE, computeStart);
+
+                long writeStart = System.nanoTime();
+                writer.writeSlice(newPixels);
+                metrics.addTime(RunMetrics.Phase.OUTPUT, writeStart);
+                engine.reportProgress(metrics.sliceDone(), newDepth);
+            }
+        } finally {
+            long closeStart = System.nanoTime();
+            writer.close();
+            metrics.addTime(RunMetrics.Phase.OUTPUT, closeStart);
+        }
+        metrics.slabDone((long) newWidth * newHeight * newDepth);
+        engine.finish(metrics);
+    }
+
+    // Keeps the last three input slices that were asked for. The engine only asks for the
+    // input slice z a new slice lies in and the slices next to it, and z never goes back
+    // while the new slices are computed in order, so every slice is read once. Separable
+    // kernels ask for each input slice once, when its interpolated plane is computed.
+    private static class SliceWindow implements IntFunction<Object> {
+
+        private final ImageStack stack;
+        private final int[] loaded = {-1, -1, -1};
+        private final Object[] pixels = new Object[3];
+
+        SliceWindow(ImageStack stack) {
+            this.stack = stack;
+        }
+
+        @Override
+        public Object apply(int z) {
+            int slot = z % 3;
+            if (loaded[slot] != z) {
+                pixels[slot] = stack.getPixels(z + 1);
+                loaded[slot] = z;
+            }
+            return pixels[slot];
+        }
+    }
+}
@@ -0,0 +1,1193 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: This code upsamples a stack of CT scans, by 2 in every dimension unless other
+ scale factors are set. It owns the traversal of the volume, the handling of the image
+ borders, the allocation of the new stack and the timing of the run. The new slices
+ are split into z-slabs that are processed in parallel on a ForkJoinPool, and each slab is
+ traversed in cache-sized tiles of new voxels. The new voxel values themselves are computed
+ by the VoxelKernel it is given, so every *_RE plugin shares this one loop.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntFunction;
+
+public class UpsamplingEngine {
+
+    private final VoxelKernel kernel;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private EdgePolicy edgePolicy = EdgePolicy.CLAMP;
+    private double scaleX = 2;
+    private double scaleY = 2;
+    private double scaleZ = 2;
+    private Rectangle bounds;
+    private int firstSlice;
+    private int lastSlice;
+    private int tileWidth;
+    private int tileHeight;
+    private int tileDepth;
+    private volatile ProgressListener progressListener;
+    private volatile boolean cancelled;
+    private volatile RunMetrics lastMetrics;
+
+    public UpsamplingEngine(VoxelKernel kernel) {
+        this.kernel = kernel;
+    }
+
+    public VoxelKernel getKernel() {
+        return kernel;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    // Number of worker threads used for the z-slabs, defaults to the available processors
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    // Sets the threads the plugins run with: honors Edit > Options > Memory & Threads,
+    // which defaults to the available processors
+    public void useImageJThreads() {
+        setThreads(Prefs.getThreads());
+    }
+
+    public EdgePolicy getEdgePolicy() {
+        return edgePolicy;
+    }
+
+    // How neighbors outside the volume are read, defaults to repeating the edge voxel
+    public void setEdgePolicy(EdgePolicy edgePolicy) {
+        this.edgePolicy = edgePolicy;
+    }
+
+    public double getScaleX() {
+        return scaleX;
+    }
+
+    public double getScaleY() {
+        return scaleY;
+    }
+
+    public double getScaleZ() {
+        return scaleZ;
+    }
+
+    // Scale factor along each axis, 2 by default. Factors need not be integers (e.g. 1.5
+    // in-plane and 4 along z); the new size of an axis is its size times the factor, rounded.
+    public void setScale(double scaleX, double scaleY, double scaleZ) {
+        if (!(scaleX >= 1 && scaleY >= 1 && scaleZ >= 1)) {
+            throw new IllegalArgumentException("Scale factors must be at least 1");
+        }
+        this.scaleX = scaleX;
+        this.scaleY = scaleY;
+        this.scaleZ = scaleZ;
+    }
+
+    public void setScale(double scale) {
+        setScale(scale, scale, scale);
+    }
+
+    public Rectangle getBounds() {
+        return (bounds == null) ? null : new Rectangle(bounds);
+    }
+
+    // Upsamples only the voxels inside bounds, and returns that part of the new stack.
+    // null, the default, means the whole slice, or the bounds of the image's area ROI for
+    // the run methods.
+    public void setBounds(Rectangle bounds) {
+        this.bounds = (bounds == null) ? null : new Rectangle(bounds);
+    }
+
+    // Size in new voxels of the tiles the volume is traversed in: tiles of width new voxels
+    // of height rows of depth new slices. A row of a tile is gathered and combined in
+    // buffers that stay in the L1 cache, and the new rows of a tile are computed together
+    // while the input rows they share are in the cache. 0, the default, selects a size
+    // from the size of the stack (see Plan).
+    public void setTileSize(int width, int height, int depth) {
+        if (width < 0 || height < 0 || depth < 0) {
+            throw new IllegalArgumentException("Tile sizes must not be negative");
+        }
+        tileWidth = width;
+        tileHeight = height;
+        tileDepth = depth;
+    }
+
+    // Upsamples only slices first to last (1-based, inclusive); 0 and 0, the default,
+    // means every slice
+    public void setSliceRange(int first, int last) {
+        if (first < 0 || last < first || (first == 0) != (last == 0)) {
+            throw new IllegalArgumentException("Invalid slice range: " + first + "-" + last);
+        }
+        firstSlice = first;
+        lastSlice = last;
+    }
+
+    // Gets the progress of every run instead of the log, null to log it again
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    // Stops a running upsample, from any thread. The workers check between slices, so each
+    // stops once the slice in hand is done, and the run throws a CancellationException.
+    // An engine stays cancelled; use a new one for the next run.
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // Timings, throughput and peak heap of the last run or upsample that finished, null
+    // before the first. Runs also write it to the log as JSON.
+    public RunMetrics getLastMetrics() {
+        return lastMetrics;
+    }
+
+    // Upsamples the stack of imp and returns it as a new, not yet shown, image
+    public ImagePlus run(ImagePlus imp) {
+        return run(imp, plan(imp));
+    }
+
+    // Same as above with a plan made for imp
+    ImagePlus run(ImagePlus imp, Plan plan) {
+        RunMetrics metrics = newMetrics(plan, threads);
+
+        ImageStack newStack = upsample(plan, metrics)[0];
+        long outputStart = System.nanoTime();
+        ImagePlus newImp = newImage(imp, newStack, plan);
+        metrics.addTime(RunMetrics.Phase.OUTPUT, outputStart);
+
+        finish(metrics);
+        return newImp;
+    }
+
+    // Same as run(ImagePlus), but the new voxels go to a memory-mapped file and the image
+    // shows them through a virtual stack, so results larger than the heap can be viewed
+    public ImagePlus run(ImagePlus imp, File outputFile) throws IOException {
+        Plan plan = plan(imp);
+        RunMetrics metrics = newMetrics(plan, threads);
+
+        long allocationStart = System.nanoTime();
+        MappedVolume output = MappedVolume.create(outputFile, plan.x.newSize, plan.y.newSize, plan.z.newSize,
+                plan.bitDepth);
+        metrics.addTime(RunMetrics.Phase.ALLOCATION, allocationStart);
+        try {
+            long computeStart = System.nanoTime();
+            runSlabs(plan, null, output, 0, plan.z.newSize, metrics);
+            metrics.addTime(RunMetrics.Phase.COMPUTE, computeStart);
+        } finally {
+            long closeStart = System.nanoTime();
+            output.close();
+            metrics.addTime(RunMetrics.Phase.OUTPUT, closeStart);
+        }
+        long outputStart = System.nanoTime();
+        ImagePlus newImp = newImage(imp, output.getStack(), plan);
+        metrics.addTime(RunMetrics.Phase.OUTPUT, outputStart);
+
+        finish(metrics);
+        return newImp;
+    }
+
+    // Returns the upsampled image at once; its slices are only computed when they are viewed
+    public ImagePlus runLazy(ImagePlus imp) {
+        Plan plan = plan(imp);
+        return newImage(imp, new LazyUpsampledStack(this, plan, LazyUpsampledStack.DEFAULT_CACHE_SIZE), plan);
+    }
+
+    // Upsamples imp once with each of kernels, instead of the engine's kernel, and returns
+    // one new image per kernel, in the same order. The four-neighbor kernels share one
+    // traversal: the neighbors of each new voxel are gathered once and every kernel combines
+    // them into a stack of its own, so comparing them costs about one pass over the input
+    // instead of one each. Separable kernels do not read those neighbors and take a pass
+    // each. All the new stacks are held in memory at once.
+    public ImagePlus[] runFused(ImagePlus imp, List<VoxelKernel> kernels) {
+        if (kernels.isEmpty()) {
+            throw new IllegalArgumentException("No kernels to run");
+        }
+        List<VoxelKernel> fused = new ArrayList<>();
+        List<Plan> plans = new ArrayList<>();
+        for (VoxelKernel fusedKernel : kernels) {
+            if (fusedKernel instanceof SeparableKernel) {
+                plans.add(plan(imp, new VoxelKernel[] {fusedKernel}));
+            } else {
+                fused.add(fusedKernel);
+            }
+        }
+        if (!fused.isEmpty()) {
+            plans.add(0, plan(imp, fused.toArray(new VoxelKernel[0])));
+        }
+        Plan first = plans.get(0);
+        RunMetrics metrics = new RunMetrics(names(kernels.toArray(new VoxelKernel[0])), first.bitDepth, threads,
+                new int[] {first.x.size, first.y.size, first.z.size},
+                new int[] {first.x.newSize, first.y.newSize, first.z.newSize});
+        metrics.setTotalSlices(plans.size() * first.z.newSize);
+
+        Map<VoxelKernel, ImageStack> newStacks = new IdentityHashMap<>();
+        Map<VoxelKernel, Plan> kernelPlans = new IdentityHashMap<>();
+        for (Plan plan : plans) {
+            ImageStack[] planStacks = upsample(plan, metrics);
+            for (int k = 0; k < plan.kernels.length; k++) {
+                newStacks.put(plan.kernels[k], planStacks[k]);
+                kernelPlans.put(plan.kernels[k], plan);
+            }
+        }
+
+        long outputStart = System.nanoTime();
+        ImagePlus[] newImps = new ImagePlus[kernels.size()];
+        for (int k = 0; k < newImps.length; k++) {
+            VoxelKernel fusedKernel = kernels.get(k);
+            newImps[k] = newImage(imp, newStacks.get(fusedKernel), kernelPlans.get(fusedKernel), fusedKernel);
+        }
+        metrics.addTime(RunMetrics.Phase.OUTPUT, outputStart);
+
+        finish(metrics);
+        return newImps;
+    }
+
+    // Titles the new stack and scales the calibration of imp to it
+    ImagePlus newImage(ImagePlus imp, ImageStack newStack, Plan plan) {
+        return newImage(imp, newStack, plan, kernel);
+    }
+
+    private ImagePlus newImage(ImagePlus imp, ImageStack newStack, Plan plan, VoxelKernel newKernel) {
+        ImagePlus newImp = new ImagePlus("Subpixel Averaging 3D: " + newKernel.getName(), newStack);
+        newImp.setCalibration(newCalibration(imp, plan));
+        return newImp;
+    }
+
+    // Calibration of imp with the voxel size of the new voxels. The origin is scaled with
+    // the voxels, like Image > Scale does, and moved to the corner of the region, so a
+    // cropped result keeps the coordinates it has in the whole upsampled volume.
+    static Calibration newCalibration(ImagePlus imp, Plan plan) {
+        Calibration calibration = imp.getCalibration().copy();
+        calibration.pixelWidth /= plan.x.scale;
+        calibration.pixelHeight /= plan.y.scale;
+        calibration.pixelDepth /= plan.z.scale;
+        calibration.xOrigin = calibration.xOrigin * plan.x.scale - plan.x.newFirst;
+        calibration.yOrigin = calibration.yOrigin * plan.y.scale - plan.y.newFirst;
+        calibration.zOrigin = calibration.zOrigin * plan.z.scale - plan.z.newFirst;
+        return calibration;
+    }
+
+    // Upsamples every voxel of the stack and returns the new stack
+    public ImageStack upsample(ImageStack stack) {
+        Plan plan = plan(stack);
+        RunMetrics metrics = newMetrics(plan, threads);
+        ImageStack newStack = upsample(plan, metrics)[0];
+        metrics.finish();
+        lastMetrics = metrics;
+        return newStack;
+    }
+
+    // One new stack for each kernel of the plan
+    private ImageStack[] upsample(Plan plan, RunMetrics metrics) {
+        int newWidth = plan.x.newSize;
+        int newHeight = plan.y.newSize;
+        int newDepth = plan.z.newSize;
+
+        long allocationStart = System.nanoTime();
+        ImageStack[] newStacks = new ImageStack[plan.kernels.length];
+
+        // Initialize each slice of the new stacks, like the first input slice, which is read once
+        ImageProcessor template = plan.input.getProcessor(1);
+        Object[][] newPixels = new Object[newStacks.length][newDepth];
+        for (int k = 0; k < newStacks.length; k++) {
+            newStacks[k] = new ImageStack(newWidth, newHeight);
+            for (int i = 0; i < newDepth; i++) {
+                newStacks[k].addSlice(template.createProcessor(newWidth, newHeight));
+                newPixels[k][i] = newStacks[k].getPixels(i + 1);
+            }
+        }
+        metrics.addTime(RunMetrics.Phase.ALLOCATION, allocationStart);
+
+        long computeStart = System.nanoTime();
+        runSlabs(plan, newPixels, null, 0, newDepth, metrics);
+        metrics.addTime(RunMetrics.Phase.COMPUTE, computeStart);
+        return newStacks;
+    }
+
+    // Recomputes new slices newZStart to newZEnd - 1 of newPixels, the slices of a stack
+    // upsampled with plan, e.g. because the input slices they read have changed
+    void upsample(Plan plan, Object[] newPixels, int newZStart, int newZEnd, RunMetrics metrics) {
+        runSlabs(plan, new Object[][] {newPixels}, null, newZStart, newZEnd, metrics);
+    }
+
+    // Upsamples every voxel of the stack into output, which must have the size of the
+    // upsampled stack and the same bit depth
+    public void upsample(ImageStack stack, MappedVolume output) {
+        upsample(plan(stack), output);
+    }
+
+    // Same as above with a plan made for the stack
+    void upsample(Plan plan, MappedVolume output) {
+        if (output.getWidth() != plan.x.newSize || output.getHeight() != plan.y.newSize
+                || output.getDepth() != plan.z.newSize || output.getBitDepth() != plan.bitDepth) {
+            throw new IllegalArgumentException("Output volume does not match the upsampled stack");
+        }
+        RunMetrics metrics = newMetrics(plan, threads);
+        long computeStart = System.nanoTime();
+        runSlabs(plan, null, output, 0, plan.z.newSize, metrics);
+        metrics.addTime(RunMetrics.Phase.COMPUTE, computeStart);
+        metrics.finish();
+        lastMetrics = metrics;
+    }
+
+    // The input size in the metrics is that of the region when there is one
+    RunMetrics newMetrics(Plan plan, int threads) {
+        return new RunMetrics(names(plan.kernels), plan.bitDepth, threads,
+                new int[] {plan.x.size, plan.y.size, plan.z.size},
+                new int[] {plan.x.newSize, plan.y.newSize, plan.z.newSize});
+    }
+
+    // Names of the kernels, joined by " + " when there are several
+    private static String names(VoxelKernel[] kernels) {
+        StringBuilder names = new StringBuilder(kernels[0].getName());
+        for (int k = 1; k < kernels.length; k++) {
+            names.append(" + ").append(kernels[k].getName());
+        }
+        return names.toString();
+    }
+
+    // Ends a run: keeps its metrics and logs them
+    void finish(RunMetrics metrics) {
+        metrics.finish();
+        lastMetrics = metrics;
+        IJ.log("Total Run Time: " + Math.round(metrics.getTotalSeconds() * 1000) / 1000.0 + " seconds");
+        IJ.log(metrics.toJson());
+    }
+
+    // Source positions of every new voxel for the given stack, the current scale factors,
+    // bounds and slice range
+    Plan plan(ImageStack stack) {
+        return plan(stack, bounds, new VoxelKernel[] {kernel});
+    }
+
+    // Same as above for the stack of imp, within its area ROI unless bounds are set
+    Plan plan(ImagePlus imp) {
+        return plan(imp, new VoxelKernel[] {kernel});
+    }
+
+    private Plan plan(ImagePlus imp, VoxelKernel[] kernels) {
+        Roi roi = imp.getRoi();
+        boolean useRoi = (bounds == null) && (roi != null) && roi.isArea();
+        return plan(imp.getStack(), useRoi ? roi.getBounds() : bounds, kernels);
+    }
+
+    // A plan for several kernels computes them all in one traversal; only four-neighbor
+    // kernels can share it
+    private Plan plan(ImageStack stack, Rectangle bounds, VoxelKernel[] kernels) {
+        checkBitDepth(stack.getBitDepth());
+        SeparableKernel separable = (kernels[0] instanceof SeparableKernel) ? (SeparableKernel) kernels[0] : null;
+        boolean steered = false;
+        for (VoxelKernel planKernel : kernels) {
+            if (!(planKernel instanceof NeighborKernel || planKernel instanceof SeparableKernel
+                    || planKernel instanceof GradientKernel)) {
+                throw new IllegalArgumentException(planKernel.getName() + " is not a kind of kernel the engine runs");
+            }
+            if (kernels.length > 1 && planKernel instanceof SeparableKernel) {
+                throw new IllegalArgumentException("Separable kernels cannot share a traversal");
+            }
+            steered |= planKernel instanceof GradientKernel;
+        }
+        AxisMapping x = new AxisMapping(stack.getWidth(), scaleX, separable, edgePolicy);
+        AxisMapping y = new AxisMapping(stack.getHeight(), scaleY, separable, edgePolicy);
+        AxisMapping z = new AxisMapping(stack.getSize(), scaleZ, separable, edgePolicy);
+
+        Rectangle whole = new Rectangle(stack.getWidth(), stack.getHeight());
+        Rectangle box = (bounds == null) ? whole : bounds.intersection(whole);
+        if (box.isEmpty()) {
+            throw new IllegalArgumentException("The bounds lie outside the image");
+        }
+        int first = (firstSlice == 0) ? 1 : firstSlice;
+        int last = (lastSlice == 0) ? stack.getSize() : lastSlice;
+        if (last > stack.getSize()) {
+            throw new IllegalArgumentException("The stack has only " + stack.getSize() + " slices");
+        }
+        if (box.equals(whole) && first == 1 && last == stack.getSize()) {
+            return new Plan(x, y, z, stack.getBitDepth(), kernels, separable, stack,
+                    new int[] {tileWidth, tileHeight, tileDepth});
+        }
+
+        // Only the new voxels of the region, computed from a copy of the input voxels they
+        // read; the gradient of a GradientKernel reads one voxel around each source voxel, so
+        // it is the same in the copy as in the whole stack
+        int reach = steered ? 1 : 0;
+        x = new AxisMapping(x, box.x, box.x + box.width, reach);
+        y = new AxisMapping(y, box.y, box.y + box.height, reach);
+        z = new AxisMapping(z, first - 1, last, reach);
+        return new Plan(x, y, z, stack.getBitDepth(), kernels, separable, crop(stack, x, y, z),
+                new int[] {tileWidth, tileHeight, tileDepth});
+    }
+
+    // The input voxels of the restricted mappings, as a stack of their own
+    private static ImageStack crop(ImageStack stack, AxisMapping x, AxisMapping y, AxisMapping z) {
+        ImageStack input = new ImageStack(x.size, y.size);
+        for (int i = 0; i < z.size; i++) {
+            ImageProcessor ip = stack.getProcessor(z.first + i + 1);
+            ip.setRoi(x.first, y.first, x.size, y.size);
+            input.addSlice(stack.getSliceLabel(z.first + i + 1), ip.crop());
+        }
+        return input;
+    }
+
+    // Runs the slabs of new slices newZStart to newZEnd - 1 into either the heap slices
+    // newPixels, the heap slices of each kernel, or the mapped output of a single kernel
+    private void runSlabs(Plan plan, Object[][] newPixels, MappedVolume mappedOutput, int newZStart, int newZEnd,
+            RunMetrics metrics) {
+        if (plan.steered) {
+            plan.gradients(threads, this);
+        }
+        int newDepth = newZEnd - newZStart;
+        if (threads == 1 || newDepth == 1) {
+            upsampleSlab(plan, newPixels, mappedOutput, newZStart, newZEnd, metrics);
+        } else {
+            // Slabs several times smaller than newDepth / threads keep every core busy until the end
+            int slabSize = Math.max(1, newDepth / (threads * 4));
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(new SlabTask(plan, newPixels, mappedOutput, newZStart, newZEnd, slabSize, metrics));
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    // Fills new slices newZStart to newZEnd - 1, plan.tileDepth slices at a time. Slabs only
+    // read the input slices their new slices lie in plus a one-slice halo, and never write to
+    // the same new slice, so they need no locking. For a mapped output the new slices are
+    // computed on heap and copied in.
+    private void upsampleSlab(Plan plan, Object[][] newPixels, MappedVolume mappedOutput, int newZStart,
+            int newZEnd, RunMetrics metrics) {
+        IntFunction<Object> slices = z -> plan.input.getPixels(z + 1);
+        Scratch scratch = new Scratch(plan);
+
+        Object[][] tileSlices = null;
+        if (mappedOutput != null) {
+            tileSlices = new Object[1][plan.tileDepth];
+            for (int i = 0; i < plan.tileDepth; i++) {
+                tileSlices[0][i] = newPixels(plan.bitDepth, plan.x.newSize * plan.y.newSize);
+            }
+        }
+
+        for (int tileZ = newZStart; tileZ < newZEnd; tileZ += plan.tileDepth) {
+            checkCancelled();
+            int tileZEnd = Math.min(newZEnd, tileZ + plan.tileDepth);
+            if (mappedOutput == null) {
+                upsampleSlices(slices, tileZ, tileZEnd, newPixels, 0, scratch);
+            } else {
+                upsampleSlices(slices, tileZ, tileZEnd, tileSlices, tileZ, scratch);
+                for (int newZ = tileZ; newZ < tileZEnd; newZ++) {
+                    mappedOutput.putSlice(newZ, tileSlices[0][newZ - tileZ]);
+                }
+            }
+            for (int newZ = tileZ; newZ < tileZEnd; newZ++) {
+                reportProgress(metrics.sliceDone(), metrics.getTotalSlices());
+            }
+        }
+        metrics.slabDone((long) (newZEnd - newZStart) * plan.x.newSize * plan.y.newSize * plan.kernels.length);
+    }
+
+    // Computes new slices newZStart to newZEnd - 1 into newPixels[k][newZ - offset] for each
+    // kernel k. Each band of plan.tileHeight new rows is computed for all of these slices
+    // before the next band, so the input rows the slices share are read from the cache
+    // rather than from memory. The input slices are fetched once for all the bands: a
+    // virtual stack reads a slice again on every getPixels.
+    private void upsampleSlices(IntFunction<Object> slices, int newZStart, int newZEnd, Object[][] newPixels,
+            int offset, Scratch scratch) {
+        Plan plan = scratch.plan;
+        if (plan.separable != null) {
+            for (int newZ = newZStart; newZ < newZEnd; newZ++) {
+                upsampleSeparable(slices, newZ, newPixels[0][newZ - offset], scratch);
+            }
+            return;
+        }
+        AxisMapping mapZ = plan.z;
+        Map<Integer, Object> fetched = new HashMap<>();
+        IntFunction<Object> tileSlices = z -> fetched.computeIfAbsent(z, slices::apply);
+        Object[] currentSlices = new Object[newZEnd - newZStart];
+        Object[] sideSlices = new Object[newZEnd - newZStart];
+        for (int newZ = newZStart; newZ < newZEnd; newZ++) {
+            int z = mapZ.source[newZ];
+            currentSlices[newZ - newZStart] = tileSlices.apply(z);
+            sideSlices[newZ - newZStart] = sliceAt(tileSlices, mapZ.size, z + mapZ.side[newZ]);
+        }
+
+        Object[] newSlices = new Object[newPixels.length];
+        for (int newYStart = 0; newYStart < plan.y.newSize; newYStart += plan.tileHeight) {
+            int newYEnd = Math.min(plan.y.newSize, newYStart + plan.tileHeight);
+            for (int newZ = newZStart; newZ < newZEnd; newZ++) {
+                for (int k = 0; k < newSlices.length; k++) {
+                    newSlices[k] = newPixels[k][newZ - offset];
+                }
+                short[][] gradient = plan.steered ? scratch.gradient(tileSlices, mapZ.source[newZ]) : null;
+                upsampleRows(currentSlices[newZ - newZStart], sideSlices[newZ - newZStart], gradient, newZ,
+                        newYStart, newYEnd, newSlices, scratch);
+            }
+        }
+    }
+
+    // Computes new slice newZ into newPixels. slices returns the pixels of a 0-based input
+    // slice and is only asked for the input slice newZ lies in and the slices next to it,
+    // so callers going through the new slices in order may keep just that window.
+    void upsampleSlice(IntFunction<Object> slices, int newZ, Object newPixels, Scratch scratch) {
+        Plan plan = scratch.plan;
+        if (plan.separable != null) {
+            upsampleSeparable(slices, newZ, newPixels, scratch);
+            return;
+        }
+        AxisMapping mapZ = plan.z;
+        int z = mapZ.source[newZ];
+        Object currentSlice = slices.apply(z);
+        Object sideSlice = sliceAt(slices, mapZ.size, z + mapZ.side[newZ]);
+        short[][] gradient = plan.steered ? scratch.gradient(slices, z) : null;
+        upsampleRows(currentSlice, sideSlice, gradient, newZ, 0, plan.y.newSize, new Object[] {newPixels}, scratch);
+    }
+
+    // Computes new rows newYStart to newYEnd - 1 of new slice newZ for the four-neighbor
+    // kernels, into newPixels[k] for kernel k, from the input slice newZ lies in
+    // (currentSlice), the one on its side (sideSlice) and the gradient of the first
+    private void upsampleRows(Object currentSlice, Object sideSlice, short[][] gradient, int newZ, int newYStart,
+            int newYEnd, Object[] newPixels, Scratch scratch) {
+        int sideZ = scratch.plan.z.side[newZ];
+        scratch.clearRows();
+        if (currentSlice instanceof float[]) {
+            upsampleFloatRows((float[]) currentSlice, (float[]) sideSlice, gradient, sideZ, newYStart, newYEnd,
+                    newPixels, scratch);
+        } else {
+            upsampleIntRows(currentSlice, sideSlice, gradient, sideZ, newYStart, newYEnd, newPixels, scratch);
+        }
+    }
+
+    // Separable kernels: each input slice is interpolated along x and y once into a plane
+    // of the new slice size (Scratch.plane), then the new slice is the z-weighted sum of
+    // the planes of the input slices it is interpolated from
+    private void upsampleSeparable(IntFunction<Object> slices, int newZ, Object newPixels, Scratch scratch) {
+        AxisMapping mapZ = scratch.plan.z;
+        int taps = mapZ.taps;
+        float[] sum = scratch.sumPlane;
+        Arrays.fill(sum, 0);
+
+        for (int j = 0; j < taps; j++) {
+            float weight = mapZ.tapWeight[newZ * taps + j];
+            if (weight == 0) {
+                continue;
+            }
+            float[] plane = scratch.plane(mapZ.tapSource[newZ * taps + j], slices);
+            for (int i = 0; i < sum.length; i++) {
+                sum[i] += weight * plane[i];
+            }
+        }
+        PixelRows.writeRounded(sum, newPixels);
+    }
+
+    // Pixels of slice z (0-based), or null when the edge policy makes it all zero
+    private Object sliceAt(IntFunction<Object> slices, int depth, int z) {
+        int sourceZ = edgePolicy.resolve(z, depth);
+        return (sourceZ < 0) ? null : slices.apply(sourceZ);
+    }
+
+    // 8-bit and 16-bit slices. Input rows are unpacked to unsigned ints and each new row is
+    // computed plan.tileWidth new voxels at a time into a short buffer, which is written
+    // straight into the byte[] or short[] of its slice. Each new voxel combines the input
+    // voxels on its own side of its source voxel in x, in y, diagonally in x-y and in z.
+    // Rows carry a one-voxel halo filled by loadRow and the x positions come from the plan,
+    // so the x loop needs no bounds checks. For a GradientKernel the center voxels and
+    // their gradient (gradient, that of the input slice, null for other kernels) are
+    // gathered too.
+    private void upsampleIntRows(Object currentSlice, Object sideSlice, short[][] gradient, int sideZ,
+            int newYStart, int newYEnd, Object[] newPixels, Scratch scratch) {
+        Plan plan = scratch.plan;
+        VoxelKernel[] kernels = plan.kernels;
+        boolean gatherRows = plan.rowKernels[0] != null || kernels.length > 1 || gradient != null;
+        AxisMapping mapY = plan.y;
+        int newWidth = plan.x.newSize;
+        int[] centerX = plan.centerX;
+        int[] sideX = plan.sideX;
+        int[] newRow = scratch.newRow;
+        int[] neighbors = scratch.neighbors;
+
+        for (int newY = newYStart; newY < newYEnd; newY++) {
+            int y = mapY.source[newY];
+            int[] currentRow = scratch.row(CURRENT, currentSlice, y, this);
+            int[] sideRowY = scratch.row(SIDE_Y, currentSlice, y + mapY.side[newY], this);
+            int[] sideRowZ = scratch.row(SIDE_Z, sideSlice, y, this);
+
+            for (int tileX = 0; tileX < newWidth; tileX += plan.tileWidth) {
+                int length = Math.min(plan.tileWidth, newWidth - tileX);
+                int offset = newY * newWidth + tileX;
+                // Row kernels, and the kernels of a fused run, get the neighbors of the whole
+                // tile row at once, gathered once for all of them
+                if (gatherRows) {
+                    int[][] neighborRows = scratch.neighborRows;
+                    for (int i = 0; i < length; i++) {
+                        int newX = tileX + i;
+                        neighborRows[0][i] = currentRow[sideX[newX]];
+                        neighborRows[1][i] = sideRowY[centerX[newX]];
+                        neighborRows[2][i] = sideRowY[sideX[newX]];
+                        neighborRows[3][i] = sideRowZ[centerX[newX]];
+                    }
+                    if (gradient != null) {
+                        int[] centerRow = scratch.centerRow;
+                        for (int i = 0; i < length; i++) {
+                            centerRow[i] = currentRow[centerX[tileX + i]];
+                        }
+                        gatherGradient(gradient, y, mapY.side[newY], sideZ, tileX, length, scratch);
+                    }
+                    for (int k = 0; k < kernels.length; k++) {
+                        if (plan.gradientKernels[k] != null) {
+                            plan.gradientKernels[k].combineRows(scratch.centerRow, neighborRows,
+                                    scratch.gradientRows, newRow, length);
+                        } else {
+                            combineRows(plan.neighborKernels[k], plan.rowKernels[k], neighborRows, neighbors,
+                                    newRow, length);
+                        }
+                        PixelRows.write(newRow, length, newPixels[k], offset);
+                    }
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        int newX = tileX + i;
+                        neighbors[0] = currentRow[sideX[newX]];
+                        neighbors[1] = sideRowY[centerX[newX]];
+                        neighbors[2] = sideRowY[sideX[newX]];
+                        neighbors[3] = sideRowZ[centerX[newX]];
+                        newRow[i] = plan.neighborKernels[0].combine(neighbors);
+                    }
+                    PixelRows.write(newRow, length, newPixels[0], offset);
+                }
+            }
+        }
+    }
+
+    // 32-bit slices, same traversal as above on float rows
+    private void upsampleFloatRows(float[] currentSlice, float[] sideSlice, short[][] gradient, int sideZ,
+            int newYStart, int newYEnd, Object[] newPixels, Scratch scratch) {
+        Plan plan = scratch.plan;
+        VoxelKernel[] kernels = plan.kernels;
+        boolean gatherRows = plan.rowKernels[0] != null || kernels.length > 1 || gradient != null;
+        AxisMapping mapY = plan.y;
+        int newWidth = plan.x.newSize;
+        int[] centerX = plan.centerX;
+        int[] sideX = plan.sideX;
+        float[] newRow = scratch.newFloatRow;
+        float[] neighbors = scratch.floatNeighbors;
+
+        for (int newY = newYStart; newY < newYEnd; newY++) {
+            int y = mapY.source[newY];
+            float[] currentRow = scratch.floatRow(CURRENT, currentSlice, y, this);
+            float[] sideRowY = scratch.floatRow(SIDE_Y, currentSlice, y + mapY.side[newY], this);
+            float[] sideRowZ = scratch.floatRow(SIDE_Z, sideSlice, y, this);
+
+            for (int tileX = 0; tileX < newWidth; tileX += plan.tileWidth) {
+                int length = Math.min(plan.tileWidth, newWidth - tileX);
+                int offset = newY * newWidth + tileX;
+                if (gatherRows) {
+                    float[][] neighborRows = scratch.floatNeighborRows;
+                    for (int i = 0; i < length; i++) {
+                        int newX = tileX + i;
+                        neighborRows[0][i] = currentRow[sideX[newX]];
+                        neighborRows[1][i] = sideRowY[centerX[newX]];
+                        neighborRows[2][i] = sideRowY[sideX[newX]];
+                        neighborRows[3][i] = sideRowZ[centerX[newX]];
+                    }
+                    if (gradient != null) {
+                        float[] centerRow = scratch.floatCenterRow;
+                        for (int i = 0; i < length; i++) {
+                            centerRow[i] = currentRow[centerX[tileX + i]];
+                        }
+                        gatherGradient(gradient, y, mapY.side[newY], sideZ, tileX, length, scratch);
+                    }
+                    for (int k = 0; k < kernels.length; k++) {
+                        if (plan.gradientKernels[k] != null) {
+                            plan.gradientKernels[k].combineRows(scratch.floatCenterRow, neighborRows,
+                                    scratch.gradientRows, newRow, length);
+                        } else {
+                            combineRows(plan.neighborKernels[k], plan.rowKernels[k], neighborRows, neighbors,
+                                    newRow, length);
+                        }
+                        PixelRows.write(newRow, length, (float[]) newPixels[k], offset);
+                    }
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        int newX = tileX + i;
+                        neighbors[0] = currentRow[sideX[newX]];
+                        neighbors[1] = sideRowY[centerX[newX]];
+                        neighbors[2] = sideRowY[sideX[newX]];
+                        neighbors[3] = sideRowZ[centerX[newX]];
+                        newRow[i] = plan.neighborKernels[0].combine(neighbors);
+                    }
+                    PixelRows.write(newRow, length, (float[]) newPixels[0], offset);
+                }
+            }
+        }
+    }
+
+    // Gradient of the center voxels of new voxels tileX to tileX + length - 1 in input row y,
+    // toward the side each new voxel lies on, into scratch.gradientRows (see GradientKernel)
+    private static void gatherGradient(short[][] gradient, int y, int sideY, int sideZ, int tileX, int length,
+            Scratch scratch) {
+        AxisMapping mapX = scratch.plan.x;
+        int offset = y * mapX.size;
+        float unitY = sideY * GradientVolume.EDGE_UNIT;
+        float unitZ = sideZ * GradientVolume.EDGE_UNIT;
+        float[][] gradientRows = scratch.gradientRows;
+        for (int i = 0; i < length; i++) {
+            int newX = tileX + i;
+            int x = offset + mapX.source[newX];
+            gradientRows[0][i] = gradient[0][x] * (mapX.side[newX] * GradientVolume.EDGE_UNIT);
+            gradientRows[1][i] = gradient[1][x] * unitY;
+            gradientRows[2][i] = gradient[2][x] * unitZ;
+        }
+    }
+
+    // Combines gathered neighbor rows with one kernel: at once when it is a row kernel
+    // (rowKernel not null), otherwise one new voxel at a time through neighbors
+    private static void combineRows(NeighborKernel kernel, RowKernel rowKernel, int[][] neighborRows,
+            int[] neighbors, int[] newRow, int length) {
+        if (rowKernel != null) {
+            rowKernel.combineRows(neighborRows, newRow, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            for (int j = 0; j < neighbors.length; j++) {
+                neighbors[j] = neighborRows[j][i];
+            }
+            newRow[i] = kernel.combine(neighbors);
+        }
+    }
+
+    private static void combineRows(NeighborKernel kernel, RowKernel rowKernel, float[][] neighborRows,
+            float[] neighbors, float[] newRow, int length) {
+        if (rowKernel != null) {
+            rowKernel.combineRows(neighborRows, newRow, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            for (int j = 0; j < neighbors.length; j++) {
+                neighbors[j] = neighborRows[j][i];
+            }
+            newRow[i] = kernel.combine(neighbors);
+        }
+    }
+
+    // Border pass: copies row y of slice into row[1..width] and fills row[0] and
+    // row[width + 1] according to the edge policy. Rows outside the slice, and slices
+    // outside the stack (null), are resolved by the same policy.
+    private void loadRow(Object slice, int width, int height, int y, int[] row) {
+        int sourceY = edgePolicy.resolve(y, height);
+        if (slice == null || sourceY < 0) {
+            Arrays.fill(row, 0);
+            return;
+        }
+        PixelRows.read(slice, width, sourceY, row, 1);
+        int left = edgePolicy.resolve(-1, width);
+        int right = edgePolicy.resolve(width, width);
+        row[0] = (left < 0) ? 0 : row[left + 1];
+        row[width + 1] = (right < 0) ? 0 : row[right + 1];
+    }
+
+    private void loadRow(float[] slice, int width, int height, int y, float[] row) {
+        int sourceY = edgePolicy.resolve(y, height);
+        if (slice == null || sourceY < 0) {
+            Arrays.fill(row, 0);
+            return;
+        }
+        PixelRows.read(slice, width, sourceY, row, 1);
+        int left = edgePolicy.resolve(-1, width);
+        int right = edgePolicy.resolve(width, width);
+        row[0] = (left < 0) ? 0 : row[left + 1];
+        row[width + 1] = (right < 0) ? 0 : row[right + 1];
+    }
+
+    static void checkBitDepth(int bitDepth) {
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) {
+            throw new IllegalArgumentException("Only 8-bit, 16-bit and 32-bit stacks are supported");
+        }
+    }
+
+    // Empty pixel array of a slice with the given bit depth
+    static Object newPixels(int bitDepth, int size) {
+        switch (bitDepth) {
+            case 8:
+                return new byte[size];
+            case 16:
+                return new short[size];
+            default:
+                return new float[size];
+        }
+    }
+
+    void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Upsampling was cancelled");
+        }
+    }
+
+    void reportProgress(int done, int total) {
+        ProgressListener listener = progressListener;
+        if (listener != null) {
+            listener.progress(done, total);
+            return;
+        }
+        // Log once for each 10% of the slices that are finished
+        if ((done * 10) / total != ((done - 1) * 10) / total) {
+            IJ.log("Status: " + (done * 100) / total + "%");
+        }
+    }
+
+    // Input size, scale factors, bit depth and tile size of one run
+    static final class Plan {
+
+        // Budgets the tile size is selected from: the tile row buffers (four neighbor rows
+        // and the new row) within half of a 32 KB L1 data cache, and the input slices a tile
+        // reads, the one it lies in and the two next to it, within half of a 256 KB L2 cache,
+        // the smallest sizes in common use
+        private static final int L1_TILE_BYTES = 16 * 1024;
+        private static final int L2_TILE_BYTES = 128 * 1024;
+
+        final AxisMapping x;
+        final AxisMapping y;
+        final AxisMapping z;
+        final int bitDepth;
+
+        // Kernels computed in one traversal, each into a stack of its own, each as a
+        // four-neighbor kernel and in its row form (null when it is not one)
+        final VoxelKernel[] kernels;
+        final NeighborKernel[] neighborKernels;
+        final RowKernel[] rowKernels;
+
+        // Each kernel when it is a GradientKernel, otherwise null, and whether there is one
+        final GradientKernel[] gradientKernels;
+        final boolean steered;
+
+        // Gradient of the input for the GradientKernels, once a run computed it
+        private volatile GradientVolume gradients;
+
+        // The kernel when it is applied as separable passes, otherwise null
+        final SeparableKernel separable;
+
+        // Stack the new voxels are computed from: the input, or the part of it a region
+        // reads. Indices in the mappings refer to it.
+        final ImageStack input;
+
+        // Positions in a halo-padded row of the source voxel of each new x and of the
+        // voxel next to it on the new voxel's side
+        final int[] centerX;
+        final int[] sideX;
+
+        // Tile size in new voxels, see setTileSize
+        final int tileWidth;
+        final int tileHeight;
+        final int tileDepth;
+
+        // tileSize is the width, height and depth asked for, 0 to select one
+        Plan(AxisMapping x, AxisMapping y, AxisMapping z, int bitDepth, VoxelKernel[] kernels,
+                SeparableKernel separable, ImageStack input, int[] tileSize) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.bitDepth = bitDepth;
+            this.kernels = kernels.clone();
+            neighborKernels = new NeighborKernel[kernels.length];
+            rowKernels = new RowKernel[kernels.length];
+            gradientKernels = new GradientKernel[kernels.length];
+            boolean anyGradient = false;
+            for (int k = 0; k < kernels.length; k++) {
+                neighborKernels[k] = (kernels[k] instanceof NeighborKernel) ? (NeighborKernel) kernels[k] : null;
+                rowKernels[k] = (kernels[k] instanceof RowKernel) ? (RowKernel) kernels[k] : null;
+                gradientKernels[k] = (kernels[k] instanceof GradientKernel) ? (GradientKernel) kernels[k] : null;
+                anyGradient |= gradientKernels[k] != null;
+            }
+            steered = anyGradient;
+            this.separable = separable;
+            this.input = input;
+            centerX = new int[x.newSize];
+            sideX = new int[x.newSize];
+            for (int newX = 0; newX < x.newSize; newX++) {
+                centerX[newX] = x.source[newX] + 1;
+                sideX[newX] = x.source[newX] + x.side[newX] + 1;
+            }
+
+            // Width: the row split into equal tiles within the budget, a multiple of 64 new
+            // voxels, the widest vector of any CPU, unless the row is shorter.
+            // Depth: the new slices of one input slice, which read the same input rows.
+            // Height: as many new rows as the input rows of the tile's slices allow.
+            int tiles = (x.newSize * 5 * 4 + L1_TILE_BYTES - 1) / L1_TILE_BYTES;
+            int width = ((x.newSize + tiles - 1) / tiles + 63) / 64 * 64;
+            int depth = (int) Math.ceil(z.scale);
+            int inputRowBytes = (x.size + 2) * (bitDepth / 8) * ((int) Math.ceil(depth / z.scale) + 2);
+            int height = (int) Math.max(1, (L2_TILE_BYTES / inputRowBytes - 1) * y.scale);
+            tileWidth = Math.min(x.newSize, (tileSize[0] > 0) ? tileSize[0] : width);
+            tileHeight = Math.min(y.newSize, (tileSize[1] > 0) ? tileSize[1] : height);
+            tileDepth = Math.min(z.newSize, (tileSize[2] > 0) ? tileSize[2] : depth);
+        }
+
+        // The gradient of input, computed in a parallel pass of its own the first time. The
+        // modes that compute a slice at a time (streaming, lazy stacks) do not call it and
+        // take each slice's gradient from the input slices next to it instead. engine's Cancel
+        // stops the pass and its progress listener follows it.
+        GradientVolume gradients(int threads, UpsamplingEngine engine) {
+            GradientVolume volume = gradients;
+            if (volume == null) {
+                synchronized (this) {
+                    if (gradients == null) {
+                        gradients = GradientVolume.compute(input, threads, engine);
+                    }
+                    volume = gradients;
+                }
+            }
+            return volume;
+        }
+
+        // Takes the gradient of previous, a plan of the same region of the input before the
+        // input slices marked in edited changed, and recomputes only the slices next to an
+        // edited slice, see GradientVolume.update
+        void updateGradients(Plan previous, boolean[] edited, UpsamplingEngine engine) {
+            synchronized (this) {
+                gradients = GradientVolume.update(previous.gradients, input, edited, engine.getThreads(), engine);
+            }
+        }
+    }
+
+    // Input rows a row of new voxels is computed from, see Scratch
+    private static final int CURRENT = 0;
+    private static final int SIDE_Y = 1;
+    private static final int SIDE_Z = 2;
+
+    // Row buffers of one worker thread, allocated once and reused for every voxel so the
+    // inner loop does not allocate. Each buffer remembers which input row it holds, so
+    // consecutive new rows that lie in the same input row do not unpack it again.
+    // Separable kernels use the planes instead.
+    static class Scratch {
+
+        final Plan plan;
+        final int[][] rows;
+        final int[] newRow;
+        final int[] neighbors = new int[4];
+        final float[][] floatRows;
+        final float[] newFloatRow;
+        final float[] floatNeighbors = new float[4];
+
+        // For row kernels: neighbor k of every new voxel in a row, in neighborRows[k]
+        final int[][] neighborRows;
+        final float[][] floatNeighborRows;
+
+        // For GradientKernels: the center voxel of every new voxel in a row, and its
+        // gradient toward the new voxel's side along x, y and z
+        final int[] centerRow;
+        final float[] floatCenterRow;
+        final float[][] gradientRows;
+        // Gradient of one input slice at a time, when the plan has no gradient pass
+        private GradientVolume.Sobel sobel;
+        private final Object[] loadedSlice = new Object[3];
+        private final int[] loadedY = new int[3];
+
+        // Separable kernels: input slices interpolated along x and y, one more than the
+        // kernel has taps so a slab going through its new slices in order computes each
+        // plane once. Slice z is kept in planes[z % planes.length].
+        final float[][] planes;
+        private final int[] planeZ;
+        private final float[] inputRow;
+        private final float[] xPass;
+        final float[] sumPlane;
+
+        Scratch(Plan plan) {
+            this.plan = plan;
+            int width = plan.x.size;
+            rows = new int[3][width + 2];
+            newRow = new int[plan.tileWidth];
+            floatRows = new float[3][width + 2];
+            newFloatRow = new float[plan.tileWidth];
+            neighborRows = new int[4][plan.tileWidth];
+            floatNeighborRows = new float[4][plan.tileWidth];
+            centerRow = new int[plan.tileWidth];
+            floatCenterRow = new float[plan.tileWidth];
+            gradientRows = new float[3][plan.tileWidth];
+            clearRows();
+
+            if (plan.separable == null) {
+                planes = null;
+                planeZ = null;
+                inputRow = null;
+                xPass = null;
+                sumPlane = null;
+                return;
+            }
+            int planeSize = plan.x.newSize * plan.y.newSize;
+            planes = new float[plan.z.taps + 1][planeSize];
+            planeZ = new int[planes.length];
+            Arrays.fill(planeZ, -1);
+            inputRow = new float[width];
+            xPass = new float[plan.y.size * plan.x.newSize];
+            sumPlane = new float[planeSize];
+        }
+
+        // Forgets the loaded rows, e.g. because the input slices may have changed
+        void clearRows() {
+            Arrays.fill(loadedSlice, null);
+            Arrays.fill(loadedY, Integer.MIN_VALUE);
+        }
+
+        int[] row(int buffer, Object slice, int y, UpsamplingEngine engine) {
+            if (loadedSlice[buffer] != slice || loadedY[buffer] != y) {
+                engine.loadRow(slice, plan.x.size, plan.y.size, y, rows[buffer]);
+                loadedSlice[buffer] = slice;
+                loadedY[buffer] = y;
+            }
+            return rows[buffer];
+        }
+
+        float[] floatRow(int buffer, float[] slice, int y, UpsamplingEngine engine) {
+            if (loadedSlice[buffer] != slice || loadedY[buffer] != y) {
+                engine.loadRow(slice, plan.x.size, plan.y.size, y, floatRows[buffer]);
+                loadedSlice[buffer] = slice;
+                loadedY[buffer] = y;
+            }
+            return floatRows[buffer];
+        }
+
+        // Gradient of input slice z for the GradientKernels: from the plan's gradient pass
+        // when a run computed it, otherwise from slices z - 1 to z + 1, so computing new
+        // slices in order only reads the input slices next to them
+        short[][] gradient(IntFunction<Object> slices, int z) {
+            GradientVolume volume = plan.gradients;
+            if (volume != null) {
+                return volume.components[z];
+            }
+            if (sobel == null) {
+                sobel = new GradientVolume.Sobel(plan.x.size, plan.y.size, plan.z.size, plan.bitDepth);
+            }
+            return sobel.gradient(slices, z);
+        }
+
+        // Input slice z interpolated along x and y
+        float[] plane(int z, IntFunction<Object> slices) {
+            int slot = z % planes.length;
+            if (planeZ[slot] != z) {
+                interpolateXY(slices.apply(z), planes[slot]);
+                planeZ[slot] = z;
+            }
+            return planes[slot];
+        }
+
+        // Forgets the interpolated planes and gradients, e.g. because the input slices have changed
+        void clearPlanes() {
+            if (planeZ != null) {
+                Arrays.fill(planeZ, -1);
+            }
+            if (sobel != null) {
+                sobel.clear();
+            }
+        }
+
+        // x pass over every input row into xPass, then y pass over whole rows of xPass
+        private void interpolateXY(Object pixels, float[] plane) {
+            AxisMapping mapX = plan.x;
+            AxisMapping mapY = plan.y;
+            int width = mapX.size;
+            int newWidth = mapX.newSize;
+            int tapsX = mapX.taps;
+            int tapsY = mapY.taps;
+
+            for (int y = 0; y < mapY.size; y++) {
+                PixelRows.readAsFloat(pixels, width, y, inputRow);
+                int offset = y * newWidth;
+                for (int newX = 0; newX < newWidth; newX++) {
+                    float value = 0;
+                    for (int j = newX * tapsX; j < (newX + 1) * tapsX; j++) {
+                        value += mapX.tapWeight[j] * inputRow[mapX.tapSource[j]];
+                    }
+                    xPass[offset + newX] = value;
+                }
+            }
+
+            Arrays.fill(plane, 0);
+            for (int newY = 0; newY < mapY.newSize; newY++) {
+                int offset = newY * newWidth;
+                for (int j = newY * tapsY; j < (newY + 1) * tapsY; j++) {
+                    float weight = mapY.tapWeight[j];
+                    int sourceOffset = mapY.tapSource[j] * newWidth;
+                    for (int newX = 0; newX < newWidth; newX++) {
+                        plane[offset + newX] += weight * xPass[sourceOffset + newX];
+                    }
+                }
+            }
+        }
+    }
+
+    private class SlabTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Plan plan;
+        private final Object[][] newPixels;
+        private final MappedVolume mappedOutput;
+        private final int newZStart;
+        private final int newZEnd;
+        private final int slabSize;
+        private final RunMetrics metrics;
+
+        SlabTask(Plan plan, Object[][] newPixels, MappedVolume mappedOutput, int newZStart, int newZEnd,
+                int slabSize, RunMetrics metrics) {
+            this.plan = plan;
+            this.newPixels = newPixels;
+            this.mappedOutput = mappedOutput;
+            this.newZStart = newZStart;
+            this.newZEnd = newZEnd;
+            this.slabSize = slabSize;
+            this.metrics = metrics;
+        }
+
+        @Override
+        protected void compute() {
+            if (newZEnd - newZStart <= slabSize) {
+                upsampleSlab(plan, newPixels, mappedOutput, newZStart, newZEnd, metrics);
+                return;
+            }
+            int newZMid = (newZStart + newZEnd) >>> 1;
+            invokeAll(new SlabTask(plan, newPixels, mappedOutput, newZStart, newZMid, slabSize, metrics),
+                    new SlabTask(plan, newPixels, mappedOutput, newZMid, newZEnd, slabSize, metrics));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+ PURPOSE: Decides whether the SIMD row loops in VectorRows can be used. They need the
+ incubating jdk.incubator.vector module (Java 16 or later), which is only resolved when
+ ImageJ is started with --add-modules jdk.incubator.vector. VectorRows is compiled
+ separately and loaded by name, so the rest of the plugin builds and runs on any JDK.
+ When it is not in the plugin, without the module, or when started with
+ -DResolution_Enhancement.simd=false, the kernels run their scalar row loops.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+final class VectorSupport {
+
+    // The row loops VectorRows implements. Each handles as many whole vectors of a row
+    // as fit and returns where it stopped.
+    interface Rows {
+
+        int laneCount();
+
+        int average(int[][] rows, int[] newRow, int length);
+
+        int average(float[][] rows, float[] newRow, int length);
+
+        int rootMeanSquare(int[][] rows, int[] newRow, int length);
+
+        int rootMeanSquare(float[][] rows, float[] newRow, int length);
+    }
+
+    // The SIMD row loops, null when ENABLED is false
+    static final Rows ROWS = load();
+    static final boolean ENABLED = ROWS != null;
+
+    private VectorSupport() {
+    }
+
+    private static Rows load() {
+        if (!Boolean.parseBoolean(System.getProperty("Resolution_Enhancement.simd", "true"))) {
+            return null;
+        }
+        // Without the module, or before Java 16, VectorRows fails to link
+        try {
+            Rows rows = (Rows) Class.forName("Resolution_Enhancement.VectorRows")
+                    .getDeclaredConstructor().newInstance();
+            return (rows.laneCount() > 1) ? rows : null;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
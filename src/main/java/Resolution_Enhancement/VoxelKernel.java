@@ -0,0 +1,32 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: A VoxelKernel computes the new subvoxels of the UpsamplingEngine. Each *_RE
+ plugin supplies one. The engine runs each family its own way: a NeighborKernel (or
+ RowKernel) on the four gathered neighbors, a SeparableKernel as 1D passes and the
+ GradientKernel on the neighbors steered by the gradient of the input.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+public interface VoxelKernel {
+
+    // Name shown in the title of the enhanced image, e.g. "Linear Average"
+    String getName();
+}
@@ -0,0 +1,121 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Checks that GradientKernel gives the same new voxels when only part of a stack
+ is upsampled (an ROI, a slice range, or the slice ranges of a sharded run stitched
+ together) as the matching part of a run on the whole stack. The gradient it steers by
+ reads a voxel beyond the neighbors the other kernels read, so a region whose input
+ copy missed it would differ at its edges.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.util.Random;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class GradientRegionTest {
+
+    private static final double SCALE = 1.5;
+
+    @ParameterizedTest
+    @ValueSource(ints = {8, 16, 32})
+    void regionMatchesTheWholeRun(int bitDepth) {
+        ImagePlus imp = new ImagePlus("phantom", phantom(40, 36, 19, bitDepth));
+        ImageStack whole = engine().run(imp).getStack();
+
+        UpsamplingEngine engine = engine();
+        engine.setBounds(new Rectangle(2, 2, 17, 15));
+        engine.setSliceRange(2, 12);
+        ImagePlus region = engine.run(imp);
+        Calibration calibration = region.getCalibration();
+        assertSame(whole, region.getStack(), (int) -calibration.xOrigin, (int) -calibration.yOrigin,
+                (int) -calibration.zOrigin);
+    }
+
+    // The slice ranges ShardedUpsampler gives its workers, stitched in order
+    @ParameterizedTest
+    @ValueSource(ints = {17, 19, 23, 26})
+    void shardsMatchTheWholeRun(int depth) {
+        ImagePlus imp = new ImagePlus("phantom", phantom(40, 36, depth, 16));
+        ImageStack whole = engine().run(imp).getStack();
+
+        int shards = 2;
+        int newZ = 0;
+        for (int i = 0; i < shards; i++) {
+            UpsamplingEngine engine = engine();
+            engine.setSliceRange(i * depth / shards + 1, (i + 1) * depth / shards);
+            ImageStack shard = engine.run(imp).getStack();
+            assertSame(whole, shard, 0, 0, newZ);
+            newZ += shard.getSize();
+        }
+        assertEquals(whole.getSize(), newZ);
+    }
+
+    private static UpsamplingEngine engine() {
+        UpsamplingEngine engine = new UpsamplingEngine(new GradientKernel());
+        engine.setScale(SCALE, SCALE, SCALE);
+        engine.setThreads(1);
+        engine.setProgressListener((done, total) -> { });
+        return engine;
+    }
+
+    // A bright sphere in a darker body, with strong noise so every voxel has a gradient
+    private static ImageStack phantom(int width, int height, int depth, int bitDepth) {
+        Random random = new Random(bitDepth * 31 + depth);
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            ImageProcessor ip = (bitDepth == 8) ? new ByteProcessor(width, height)
+                    : (bitDepth == 16) ? new ShortProcessor(width, height) : new FloatProcessor(width, height);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    double r = Math.sqrt(Math.pow(x - width / 2.0, 2) + Math.pow(y - height / 2.0, 2)
+                            + Math.pow((z - depth / 2.0) * 1.5, 2));
+                    ip.setf(x, y, ((r < width / 3.0) ? 100 : 20) + random.nextInt(150));
+                }
+            }
+            stack.addSlice("", ip);
+        }
+        return stack;
+    }
+
+    // part equals whole from new voxel x0, y0, z0 on
+    private static void assertSame(ImageStack whole, ImageStack part, int x0, int y0, int z0) {
+        for (int z = 0; z < part.getSize(); z++) {
+            ImageProcessor expected = whole.getProcessor(z0 + z + 1);
+            ImageProcessor actual = part.getProcessor(z + 1);
+            for (int y = 0; y < part.getHeight(); y++) {
+                for (int x = 0; x < part.getWidth(); x++) {
+                    assertEquals(expected.getf(x0 + x, y0 + y), actual.getf(x, y),
+                            "new voxel " + (x0 + x) + ", " + (y0 + y) + ", " + (z0 + z));
+                }
+            }
+        }
+    }
+}
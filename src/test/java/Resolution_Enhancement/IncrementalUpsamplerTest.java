@@ -0,0 +1,162 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Checks that a re-run of IncrementalUpsampler after a few slices were edited
+ gives the same new voxels as a fresh run of the engine, while recomputing only the new
+ slices that read an edited slice, and that a run with another edge policy, scale or
+ region starts over.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+class IncrementalUpsamplerTest {
+
+    private static final int DEPTH = 20;
+
+    // Recomputed new slices at scale 2: a four-neighbor kernel reads an input slice from 4
+    // new slices, the cubic B-spline from 8, and Gradient from the 4 of each slice next to
+    // it too, since their gradient reads it
+    @ParameterizedTest
+    @CsvSource({
+        "Linear_RE, 9, 4",
+        "Linear_RE, 4 5 15, 10",
+        "Cubic_RE, 9, 8",
+        "Cubic_RE, 4 5 15, 18",
+        "Gradient_RE, 9, 8",
+        "Gradient_RE, 4 5 15, 18",
+    })
+    void rerunMatchesAFreshRun(String plugin, String editedSlices, int recomputed) {
+        ImagePlus imp = new ImagePlus("phantom", phantom());
+        IncrementalUpsampler upsampler = new IncrementalUpsampler(engine(plugin));
+        ImagePlus result = upsampler.run(imp);
+        assertEquals(2 * DEPTH, upsampler.getRecomputedSlices());
+
+        for (String z : editedSlices.split(" ")) {
+            edit(imp, Integer.parseInt(z));
+        }
+        assertEquals(result, upsampler.run(imp));
+        assertEquals(recomputed, upsampler.getRecomputedSlices());
+        assertSame(engine(plugin).run(imp), result);
+
+        // Nothing changed since
+        upsampler.run(imp);
+        assertEquals(0, upsampler.getRecomputedSlices());
+    }
+
+    @Test
+    void otherEdgePolicyStartsOver() {
+        ImagePlus imp = new ImagePlus("phantom", phantom());
+        UpsamplingEngine engine = engine("Linear_RE");
+        IncrementalUpsampler upsampler = new IncrementalUpsampler(engine);
+        upsampler.run(imp);
+
+        engine.setEdgePolicy(EdgePolicy.MIRROR);
+        ImagePlus result = upsampler.run(imp);
+        assertEquals(2 * DEPTH, upsampler.getRecomputedSlices());
+        UpsamplingEngine fresh = engine("Linear_RE");
+        fresh.setEdgePolicy(EdgePolicy.MIRROR);
+        assertSame(fresh.run(imp), result);
+    }
+
+    @Test
+    void otherScaleStartsOver() {
+        ImagePlus imp = new ImagePlus("phantom", phantom());
+        UpsamplingEngine engine = engine("Linear_RE");
+        IncrementalUpsampler upsampler = new IncrementalUpsampler(engine);
+        upsampler.run(imp);
+
+        engine.setScale(2, 2, 3);
+        ImagePlus result = upsampler.run(imp);
+        assertEquals(3 * DEPTH, upsampler.getRecomputedSlices());
+        UpsamplingEngine fresh = engine("Linear_RE");
+        fresh.setScale(2, 2, 3);
+        assertSame(fresh.run(imp), result);
+    }
+
+    @Test
+    void otherRegionStartsOver() {
+        ImagePlus imp = new ImagePlus("phantom", phantom());
+        UpsamplingEngine engine = engine("Linear_RE");
+        IncrementalUpsampler upsampler = new IncrementalUpsampler(engine);
+        upsampler.run(imp);
+
+        Rectangle bounds = new Rectangle(4, 3, 16, 12);
+        engine.setBounds(bounds);
+        ImagePlus result = upsampler.run(imp);
+        assertEquals(2 * DEPTH, upsampler.getRecomputedSlices());
+        assertEquals(32, result.getWidth());
+        UpsamplingEngine fresh = engine("Linear_RE");
+        fresh.setBounds(bounds);
+        assertSame(fresh.run(imp), result);
+    }
+
+    private static UpsamplingEngine engine(String plugin) {
+        UpsamplingEngine engine = new UpsamplingEngine(BatchUpsampler.kernel(plugin));
+        engine.setThreads(2);
+        engine.setProgressListener((done, total) -> { });
+        return engine;
+    }
+
+    private static ImageStack phantom() {
+        Random random = new Random(11);
+        ImageStack stack = new ImageStack(32, 28);
+        for (int z = 0; z < DEPTH; z++) {
+            ShortProcessor ip = new ShortProcessor(32, 28);
+            for (int i = 0; i < 32 * 28; i++) {
+                ip.set(i, random.nextInt(4096));
+            }
+            stack.addSlice("", ip);
+        }
+        return stack;
+    }
+
+    // Masks a block of 0-based input slice z, like an edit in ImageJ would
+    private static void edit(ImagePlus imp, int z) {
+        ShortProcessor ip = (ShortProcessor) imp.getStack().getProcessor(z + 1);
+        for (int y = 5; y < 15; y++) {
+            for (int x = 8; x < 20; x++) {
+                ip.set(x, y, 0);
+            }
+        }
+    }
+
+    private static void assertSame(ImagePlus expected, ImagePlus actual) {
+        ImageStack expectedStack = expected.getStack();
+        ImageStack actualStack = actual.getStack();
+        assertEquals(expectedStack.getWidth(), actualStack.getWidth());
+        assertEquals(expectedStack.getHeight(), actualStack.getHeight());
+        assertEquals(expectedStack.getSize(), actualStack.getSize());
+        for (int z = 1; z <= expectedStack.getSize(); z++) {
+            assertArrayEquals((short[]) expectedStack.getPixels(z), (short[]) actualStack.getPixels(z),
+                    "new slice " + z);
+        }
+    }
+}
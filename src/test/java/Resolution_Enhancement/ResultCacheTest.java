@@ -0,0 +1,143 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Checks that ResultCache maps a stored result when the same voxels are upsampled
+ the same way again, computes a new one when a single voxel differs, and deletes the
+ least recently used results past its size limit.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ResultCacheTest {
+
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 16;
+    private static final int DEPTH = 4;
+    // One 16-bit result of Linear at scale 2
+    private static final long RESULT_BYTES = 8L * WIDTH * HEIGHT * DEPTH * 2;
+
+    @TempDir
+    File directory;
+
+    @Test
+    void sameVoxelsMapTheStoredResult() {
+        ResultCache cache = new ResultCache(directory, 10 * RESULT_BYTES);
+        ImagePlus imp = new ImagePlus("phantom", phantom(1));
+        ImagePlus computed = cache.run(engine(), imp);
+        assertFalse(computed.getStack().isVirtual());
+        assertEquals(1, entries().size());
+
+        ImagePlus cached = cache.run(engine(), new ImagePlus("copy", phantom(1)));
+        assertTrue(cached.getStack().isVirtual());
+        assertSame(computed, cached);
+        assertEquals(1, entries().size());
+    }
+
+    @Test
+    void oneVoxelChangedComputesAgain() {
+        ResultCache cache = new ResultCache(directory, 10 * RESULT_BYTES);
+        cache.run(engine(), new ImagePlus("phantom", phantom(1)));
+
+        ImageStack edited = phantom(1);
+        edited.getProcessor(3).set(7, 9, 4000);
+        ImagePlus imp = new ImagePlus("edited", edited);
+        ImagePlus result = cache.run(engine(), imp);
+        assertFalse(result.getStack().isVirtual());
+        assertSame(engine().run(imp), result);
+        assertEquals(2, entries().size());
+    }
+
+    @Test
+    void leastRecentlyUsedResultIsDeleted() {
+        ResultCache cache = new ResultCache(directory, 2 * RESULT_BYTES);
+        cache.run(engine(), new ImagePlus("a", phantom(1)));
+        String a = only(entries());
+        cache.run(engine(), new ImagePlus("b", phantom(2)));
+        Set<String> names = entries();
+        names.remove(a);
+        String b = only(names);
+
+        // b was used after a, then a is used again
+        long now = System.currentTimeMillis();
+        assertTrue(new File(directory, a).setLastModified(now - 20000));
+        assertTrue(new File(directory, b).setLastModified(now - 10000));
+        assertTrue(cache.run(engine(), new ImagePlus("a", phantom(1))).getStack().isVirtual());
+
+        cache.run(engine(), new ImagePlus("c", phantom(3)));
+        names = entries();
+        assertEquals(2, names.size());
+        assertTrue(names.contains(a));
+        assertFalse(names.contains(b));
+    }
+
+    private Set<String> entries() {
+        return new HashSet<>(Arrays.asList(directory.list((dir, name) -> name.endsWith(".raw"))));
+    }
+
+    private static String only(Set<String> names) {
+        assertEquals(1, names.size());
+        return names.iterator().next();
+    }
+
+    private static UpsamplingEngine engine() {
+        UpsamplingEngine engine = new UpsamplingEngine(new LinearKernel());
+        engine.setThreads(1);
+        engine.setProgressListener((done, total) -> { });
+        return engine;
+    }
+
+    private static ImageStack phantom(int seed) {
+        Random random = new Random(seed);
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            ShortProcessor ip = new ShortProcessor(WIDTH, HEIGHT);
+            for (int i = 0; i < WIDTH * HEIGHT; i++) {
+                ip.set(i, random.nextInt(4096));
+            }
+            stack.addSlice("", ip);
+        }
+        return stack;
+    }
+
+    private static void assertSame(ImagePlus expected, ImagePlus actual) {
+        ImageStack expectedStack = expected.getStack();
+        ImageStack actualStack = actual.getStack();
+        assertEquals(expectedStack.getSize(), actualStack.getSize());
+        for (int z = 1; z <= expectedStack.getSize(); z++) {
+            assertArrayEquals((short[]) expectedStack.getPixels(z), (short[]) actualStack.getPixels(z),
+                    "new slice " + z);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+
+ PURPOSE: Checks that upsampling a virtual stack reads each input slice a bounded number
+ of times, however many tiles of new rows a slice is traversed in. A virtual stack (a TIFF
+ virtual stack, or the mapped input of a shard worker) decodes the whole slice again on
+ every getPixels, so fetching the slices per tile band would multiply the reads.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class VirtualStackReadsTest {
+
+    private static final int WIDTH = 512;
+    private static final int HEIGHT = 512;
+    private static final int DEPTH = 8;
+
+    // The tiles of new rows of a 512-wide slice are a fraction of its height, so each new
+    // slice is traversed in several bands
+    @ParameterizedTest
+    @ValueSource(strings = {"Linear_RE", "Quadratic_RE", "Cubic_RE", "Gradient_RE"})
+    void readsEachSliceAFewTimes(String plugin) {
+        ImageStack stack = phantom();
+        CountingStack virtual = new CountingStack(stack);
+        ImageStack expected = engine(plugin).upsample(stack);
+        ImageStack actual = engine(plugin).upsample(virtual);
+
+        // Each tile of new slices reads its input slice and the slices on either side, and
+        // the gradient pass reads each slice once more plus the slices either side of each
+        // of its chunks, four on one thread
+        int bound = 3 * DEPTH + (plugin.equals("Gradient_RE") ? DEPTH + 2 * 4 : 0);
+        assertTrue(virtual.reads <= bound, virtual.reads + " reads of " + DEPTH + " slices");
+        for (int z = 1; z <= expected.getSize(); z++) {
+            assertArrayEquals((short[]) expected.getPixels(z), (short[]) actual.getPixels(z), "new slice " + z);
+        }
+    }
+
+    private static UpsamplingEngine engine(String plugin) {
+        UpsamplingEngine engine = new UpsamplingEngine(BatchUpsampler.kernel(plugin));
+        engine.setThreads(1);
+        engine.setProgressListener((done, total) -> { });
+        return engine;
+    }
+
+    private static ImageStack phantom() {
+        Random random = new Random(7);
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            short[] pixels = new short[WIDTH * HEIGHT];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = (short) random.nextInt(4096);
+            }
+            stack.addSlice("", new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+        }
+        return stack;
+    }
+
+    // A virtual stack that decodes a new copy of a slice on every read, and counts the reads
+    private static class CountingStack extends VirtualStack {
+
+        private final ImageStack source;
+        int reads;
+
+        CountingStack(ImageStack source) {
+            super(source.getWidth(), source.getHeight(), null, null);
+            this.source = source;
+            setBitDepth(16);
+        }
+
+        @Override
+        public Object getPixels(int n) {
+            reads++;
+            return ((short[]) source.getPixels(n)).clone();
+        }
+
+        @Override
+        public ImageProcessor getProcessor(int n) {
+            return new ShortProcessor(getWidth(), getHeight(), (short[]) getPixels(n), null);
+        }
+
+        @Override
+        public int getSize() {
+            return source.getSize();
+        }
+
+        @Override
+        public String getSliceLabel(int n) {
+            return null;
+        }
+    }
+}
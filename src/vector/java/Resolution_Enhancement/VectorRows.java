@@ -0,0 +1,151 @@
+/*
+    This file is part of Resolution_Enhancement
+
+    Resolution_Enhancement is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Resolution_Enhancement is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with VolumetricAnalysis_Medicine. If not, see <http://www.gnu.org/licenses/>.
+ PURPOSE: SIMD row loops of LinearKernel and QuadraticKernel on the Vector API. Each loop
+ handles as many whole vectors of a row as fit and returns where it stopped, and the
+ kernel finishes the row with its scalar loop. The results are bit-for-bit those of the
+ scalar loops: the same operations in the same order, and the RMS of 8-bit and 16-bit
+ voxels in double, where sums and roots of values up to 65535 are exact.
+
+ It is the only class that needs jdk.incubator.vector, so it is compiled apart from the
+ rest of the plugin (src/vector/java, see the README) and only loaded, by name, by
+ VectorSupport. A plugin built without it, or run without the module, uses the scalar
+ loops.
+
+ Author: Jonathan Collard de Beaufort, jonathancdb@gmail.com
+ May 2024
+*/
+
+package Resolution_Enhancement;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+final class VectorRows implements VectorSupport.Rows {
+
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+    // Half-width vectors whose lanes widen into exactly one DOUBLES vector
+    private static final VectorShape HALF_SHAPE = VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2);
+    private static final VectorSpecies<Integer> HALF_INTS = VectorSpecies.of(int.class, HALF_SHAPE);
+    private static final VectorSpecies<Float> HALF_FLOATS = VectorSpecies.of(float.class, HALF_SHAPE);
+
+    private static final double TWO_POW_52 = 0x1p52;
+    private static final float TWO_POW_23 = 0x1p23f;
+
+    VectorRows() {
+    }
+
+    @Override
+    public int laneCount() {
+        return INTS.length();
+    }
+
+    // Integer mean, rounded down like sum / count for non-negative voxels
+    @Override
+    public int average(int[][] rows, int[] newRow, int length) {
+        int count = rows.length;
+        boolean powerOfTwo = Integer.bitCount(count) == 1;
+        int shift = Integer.numberOfTrailingZeros(count);
+        int bound = INTS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += INTS.length()) {
+            IntVector sum = IntVector.fromArray(INTS, rows[0], i);
+            for (int r = 1; r < count; r++) {
+                sum = sum.add(IntVector.fromArray(INTS, rows[r], i));
+            }
+            sum = powerOfTwo ? sum.lanewise(VectorOperators.LSHR, shift) : sum.div(count);
+            sum.intoArray(newRow, i);
+        }
+        return i;
+    }
+
+    @Override
+    public int average(float[][] rows, float[] newRow, int length) {
+        int count = rows.length;
+        int bound = FLOATS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            FloatVector sum = FloatVector.zero(FLOATS);
+            for (int r = 0; r < count; r++) {
+                sum = sum.add(FloatVector.fromArray(FLOATS, rows[r], i));
+            }
+            sum.div(count).intoArray(newRow, i);
+        }
+        return i;
+    }
+
+    // Integer RMS rounded down. Sums of squares below 2^53 are exact in double and the
+    // root of the mean cannot round up to the next integer, so truncating gives the same
+    // value as QuadraticKernel.rootMeanSquare.
+    @Override
+    public int rootMeanSquare(int[][] rows, int[] newRow, int length) {
+        int count = rows.length;
+        int bound = HALF_INTS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += HALF_INTS.length()) {
+            DoubleVector sumOfSquares = DoubleVector.zero(DOUBLES);
+            for (int r = 0; r < count; r++) {
+                DoubleVector value = (DoubleVector) IntVector.fromArray(HALF_INTS, rows[r], i)
+                        .convertShape(VectorOperators.I2D, DOUBLES, 0);
+                sumOfSquares = sumOfSquares.add(value.mul(value));
+            }
+            DoubleVector root = sumOfSquares.div(count).sqrt();
+            wholeNumbers(floor(root)).intoArray(newRow, i);
+        }
+        return i;
+    }
+
+    // Rounds non-negative lanes below 2^52 down: adding and removing 2^52 rounds them to
+    // the nearest whole number, then the lanes that went up take one off
+    private static DoubleVector floor(DoubleVector values) {
+        DoubleVector nearest = values.add(TWO_POW_52).sub(TWO_POW_52);
+        return nearest.sub(1.0, nearest.compare(VectorOperators.GT, values));
+    }
+
+    // Whole numbers 0..2^23 as ints. Lane casts to int (D2I, F2I) are not compiled to
+    // vector instructions on Java 17, so the value is moved into the mantissa bits of
+    // 2^23 + value instead, through an exact cast to float.
+    private static IntVector wholeNumbers(DoubleVector values) {
+        FloatVector shifted = ((FloatVector) values.convertShape(VectorOperators.D2F, HALF_FLOATS, 0))
+                .add(TWO_POW_23);
+        return shifted.reinterpretAsInts().sub(Float.floatToRawIntBits(TWO_POW_23));
+    }
+
+    // Squares in float, summed in double, like QuadraticKernel.combine(float[])
+    @Override
+    public int rootMeanSquare(float[][] rows, float[] newRow, int length) {
+        int count = rows.length;
+        int bound = HALF_FLOATS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += HALF_FLOATS.length()) {
+            DoubleVector sumOfSquares = DoubleVector.zero(DOUBLES);
+            for (int r = 0; r < count; r++) {
+                FloatVector value = FloatVector.fromArray(HALF_FLOATS, rows[r], i);
+                sumOfSquares = sumOfSquares.add(
+                        (DoubleVector) value.mul(value).convertShape(VectorOperators.F2D, DOUBLES, 0));
+            }
+            DoubleVector root = sumOfSquares.div(count).sqrt();
+            root.convertShape(VectorOperators.D2F, HALF_FLOATS, 0).reinterpretAsFloats().intoArray(newRow, i);
+        }
+        return i;
+    }
+}